@@ -0,0 +1,56 @@
+package top.parak.khdb.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * 基准测试使用的临时目录
+ * <p>默认在{@code java.io.tmpdir}下创建，tmpfs上测不出真实的I/O开销时，
+ * 用{@code -Dkhdb.bench.dir=...}指定本地磁盘上的目录</p>
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+class BenchFiles {
+
+    private static final String DIR_PROPERTY = "khdb.bench.dir";
+
+    /**
+     * 创建临时目录
+     *
+     * @param prefix 目录名前缀
+     * @return 目录
+     */
+    static File createDir(String prefix) throws IOException {
+        String parent = System.getProperty(DIR_PROPERTY);
+        Path dir = parent == null
+                ? Files.createTempDirectory(prefix)
+                : Files.createTempDirectory(Files.createDirectories(Paths.get(parent)), prefix);
+        return dir.toFile();
+    }
+
+    /**
+     * 删除目录及其中的文件
+     */
+    static void delete(File dir) {
+        if (dir == null) {
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    delete(f);
+                } else {
+                    f.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+
+}
@@ -0,0 +1,145 @@
+package top.parak.khdb.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import top.parak.khdb.toolkit.Codec;
+import top.parak.khdb.toolkit.Parser;
+import top.parak.khdb.toolkit.RunLength;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 编解码微基准
+ * <ol>
+ * <li>byteBuffer*：每次调用分配ByteBuffer，作为对照</li>
+ * <li>parser*：{@link Parser}，每次返回新数组</li>
+ * <li>codec*：{@link Codec}，在已有数组上原地读写</li>
+ * <li>runLength*：一次只修改少量字节的更新日志的异或差量编解码</li>
+ * </ol>
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final int UPDATE_SIZE = 256;
+    private static final int UPDATE_CHANGED = 8;
+
+    private long value;
+    private String str;
+    private byte[] buf;
+    private byte[] longRaw;
+    private byte[] strRaw;
+    private byte[] oldRaw;
+    private byte[] newRaw;
+    private byte[] xorEncoded;
+    private ByteBuffer target;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(UPDATE_SIZE);
+        value = random.nextLong();
+        str = "khdb-benchmark-字符串";
+        buf = new byte[64];
+        longRaw = Parser.long2Byte(value);
+        strRaw = Parser.string2Byte(str);
+
+        oldRaw = new byte[UPDATE_SIZE];
+        random.nextBytes(oldRaw);
+        newRaw = oldRaw.clone();
+        int from = random.nextInt(UPDATE_SIZE - UPDATE_CHANGED);
+        for (int i = from; i < from + UPDATE_CHANGED; i++) {
+            newRaw[i] = (byte) ~newRaw[i];
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RunLength.encodeXor(out, oldRaw, newRaw);
+        xorEncoded = out.toByteArray();
+        target = ByteBuffer.wrap(oldRaw.clone());
+    }
+
+    @Benchmark
+    public byte[] byteBufferPutLong() {
+        return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
+    }
+
+    @Benchmark
+    public long byteBufferGetLong() {
+        return ByteBuffer.wrap(longRaw, 0, Long.SIZE / Byte.SIZE).getLong();
+    }
+
+    @Benchmark
+    public byte[] parserPutLong() {
+        return Parser.long2Byte(value);
+    }
+
+    @Benchmark
+    public long parserGetLong() {
+        return Parser.parseLong(longRaw);
+    }
+
+    @Benchmark
+    public byte[] codecPutLong() {
+        Codec.putLong(buf, 0, value);
+        return buf;
+    }
+
+    @Benchmark
+    public long codecGetLong() {
+        return Codec.getLong(longRaw, 0);
+    }
+
+    @Benchmark
+    public byte[] parserPutString() {
+        return Parser.string2Byte(str);
+    }
+
+    @Benchmark
+    public String parserGetString() {
+        return Parser.parseString(strRaw).str;
+    }
+
+    @Benchmark
+    public int codecPutString() {
+        return Codec.putString(buf, 0, str);
+    }
+
+    @Benchmark
+    public String codecGetString() {
+        return Codec.getString(strRaw, 0);
+    }
+
+    @Benchmark
+    public byte[] runLengthEncodeXor() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        RunLength.encodeXor(out, oldRaw, newRaw);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public ByteBuffer runLengthDecodeXor() {
+        // 作用两次后恢复原样，target保持不变
+        RunLength.decodeXor(ByteBuffer.wrap(xorEncoded), target, 0);
+        RunLength.decodeXor(ByteBuffer.wrap(xorEncoded), target, 0);
+        return target;
+    }
+
+}
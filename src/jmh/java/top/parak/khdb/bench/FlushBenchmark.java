@@ -0,0 +1,120 @@
+package top.parak.khdb.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.parak.khdb.server.dm.page.Page;
+import top.parak.khdb.server.dm.page.PageX;
+import top.parak.khdb.server.dm.pagecache.PageCache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 脏页写回
+ * <ol>
+ * <li>flushEach：逐页写回，每页fsync一次</li>
+ * <li>flushPages：整批按页号合并写入，只fsync一次</li>
+ * <li>checkpoint：写回缓存中所有的脏页</li>
+ * </ol>
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlushBenchmark {
+
+    private static final int PAGES = 1024;
+
+    /**
+     * 每次写回的连续脏页数
+     */
+    @Param({"1", "16", "64"})
+    public int batch;
+
+    private File dir;
+    private PageCache pc;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = BenchFiles.createDir("khdb-flush");
+        pc = PageCache.create(new File(dir, "bench").getPath(), (long) PAGES * PageCache.PAGE_SIZE);
+        for (int i = 0; i < PAGES; i++) {
+            pc.newPage(PageX.initRaw());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pc.close();
+        BenchFiles.delete(dir);
+    }
+
+    @Benchmark
+    public void flushEach() throws Exception {
+        List<Page> pages = dirty();
+        for (Page page : pages) {
+            pc.flushPage(page);
+        }
+        release(pages);
+    }
+
+    @Benchmark
+    public void flushPages() throws Exception {
+        List<Page> pages = dirty();
+        pc.flushPages(pages);
+        release(pages);
+    }
+
+    @Benchmark
+    public void checkpoint() throws Exception {
+        release(dirty());
+        pc.checkpoint();
+    }
+
+    /**
+     * 从随机位置开始弄脏batch个连续的页
+     */
+    private List<Page> dirty() throws Exception {
+        int from = 1 + ThreadLocalRandom.current().nextInt(PAGES - batch + 1);
+        List<Page> pages = new ArrayList<>(batch);
+        for (int pageNo = from; pageNo < from + batch; pageNo++) {
+            Page page = pc.getPage(pageNo);
+            page.lock();
+            try {
+                page.getBuffer().put(PageCache.PAGE_SIZE - 1, (byte) pageNo);
+                page.setDirty(true);
+            } finally {
+                page.unlock();
+            }
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    private static void release(List<Page> pages) {
+        for (Page page : pages) {
+            page.release();
+        }
+    }
+
+}
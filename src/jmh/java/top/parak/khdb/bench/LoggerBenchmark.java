@@ -0,0 +1,92 @@
+package top.parak.khdb.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.parak.khdb.server.dm.logger.Logger;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 日志追加吞吐量
+ * <ol>
+ * <li>append：追加{@value #BATCH}条日志后调用一次flushUpTo，一批只fsync一次，得分按单条日志计算</li>
+ * <li>log：返回时已经fsync，多线程时由组提交合并</li>
+ * </ol>
+ * <p>组提交的效果用{@code -t}比较不同线程数下的log</p>
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoggerBenchmark {
+
+    private static final int BATCH = 64;
+
+    @Param({"64", "1024"})
+    public int recordSize;
+
+    private File dir;
+    private Logger lg;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        dir = BenchFiles.createDir("khdb-log");
+        lg = Logger.create(new File(dir, "bench").getPath());
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        lg.close();
+        BenchFiles.delete(dir);
+    }
+
+    @State(Scope.Thread)
+    public static class Record {
+
+        byte[] data;
+
+        @Setup(Level.Trial)
+        public void setup(LoggerBenchmark bench) {
+            data = new byte[bench.recordSize];
+            ThreadLocalRandom.current().nextBytes(data);
+        }
+
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long append(Record record) {
+        long lsn = 0;
+        for (int i = 0; i < BATCH; i++) {
+            lsn = lg.append(record.data);
+        }
+        lg.flushUpTo(lsn);
+        return lsn;
+    }
+
+    @Benchmark
+    public long log(Record record) {
+        return lg.log(record.data);
+    }
+
+}
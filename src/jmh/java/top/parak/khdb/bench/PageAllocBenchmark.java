@@ -0,0 +1,80 @@
+package top.parak.khdb.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.parak.khdb.server.dm.page.PageX;
+import top.parak.khdb.server.dm.pagecache.PageCache;
+import top.parak.khdb.server.dm.pagecache.PageCacheOptions;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量装载时分配新页的开销，每轮迭代使用新文件
+ * <ol>
+ * <li>newPage：逐页分配</li>
+ * <li>newPages：每次分配{@value #BATCH}页</li>
+ * </ol>
+ * <p>extentPages为1时每页都扩展一次文件，对比默认的按区预分配</p>
+ *
+ * @author KHighness
+ * @since 2022-07-14
+ * @email parakovo@gmail.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageAllocBenchmark {
+
+    private static final int BATCH = 64;
+    private static final int CACHE_PAGES = 1024;
+
+    @Param({"1", "256"})
+    public int extentPages;
+
+    private File dir;
+    private PageCache pc;
+    private byte[] raw;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        dir = BenchFiles.createDir("khdb-alloc");
+        PageCacheOptions options = new PageCacheOptions();
+        options.extentPages = extentPages;
+        pc = PageCache.create(new File(dir, "bench").getPath(), (long) CACHE_PAGES * PageCache.PAGE_SIZE, options);
+        raw = PageX.initRaw();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        pc.close();
+        BenchFiles.delete(dir);
+    }
+
+    @Benchmark
+    public int newPage() {
+        return pc.newPage(raw);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int newPages() {
+        return pc.newPages(BATCH, raw);
+    }
+
+}
@@ -0,0 +1,217 @@
+package top.parak.khdb.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.parak.khdb.server.dm.page.Page;
+import top.parak.khdb.server.dm.page.PageX;
+import top.parak.khdb.server.dm.pagecache.PageCache;
+import top.parak.khdb.server.dm.pagecache.PageCacheOptions;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 页缓存的获取延迟
+ * <ol>
+ * <li>hit：在常驻的热点页中随机获取</li>
+ * <li>miss：在远大于缓存容量的冷数据中随机获取，绝大多数未命中，包括淘汰和读盘</li>
+ * <li>readRun/readRunVectored/readRunAsync：从冷数据中读取连续的页，逐页获取、批量获取与异步并发获取对比</li>
+ * <li>scanHeap：与readRun相同的冷数据扫描，额外报告每轮迭代的GC次数、GC耗时和迭代结束后的堆占用，
+ * 对比channel的堆内页帧与offheap的页帧池；分配速率用{@code -prof gc}查看</li>
+ * </ol>
+ * <p>线程数用{@code -t}指定，例如依次运行{@code -t 1}、{@code -t 4}、{@code -t 16}、{@code -t 64}</p>
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageCacheBenchmark {
+
+    private static final int CACHE_PAGES = 1024;
+    private static final int HOT_PAGES = 256;
+    private static final int FILE_PAGES = 16 * CACHE_PAGES;
+    private static final int RUN_PAGES = 16;
+
+    /**
+     * channel：FileChannel读写，mmap：内存映射，offheap：堆外页帧
+     */
+    @Param({"channel", "mmap", "offheap"})
+    public String mode;
+
+    private File dir;
+    private PageCache pc;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = BenchFiles.createDir("khdb-cache");
+        String path = new File(dir, "bench").getPath();
+        PageCache init = PageCache.create(path, (long) CACHE_PAGES * PageCache.PAGE_SIZE);
+        byte[] raw = PageX.initRaw();
+        for (int i = 0; i < FILE_PAGES; i++) {
+            init.newPage(raw);
+        }
+        init.close();
+
+        PageCacheOptions options = new PageCacheOptions();
+        options.mmap = "mmap".equals(mode);
+        options.offHeap = "offheap".equals(mode);
+        pc = PageCache.open(path, (long) CACHE_PAGES * PageCache.PAGE_SIZE, options);
+        // 热点页访问两次，进入Am
+        for (int round = 0; round < 2; round++) {
+            for (int pageNo = 1; pageNo <= HOT_PAGES; pageNo++) {
+                pc.getPage(pageNo).release();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pc.close();
+        BenchFiles.delete(dir);
+    }
+
+    @Benchmark
+    public long hit() throws Exception {
+        return read(1 + ThreadLocalRandom.current().nextInt(HOT_PAGES));
+    }
+
+    @Benchmark
+    public long miss() throws Exception {
+        return read(HOT_PAGES + 1 + ThreadLocalRandom.current().nextInt(FILE_PAGES - HOT_PAGES));
+    }
+
+    @Benchmark
+    public long readRun() throws Exception {
+        int from = randomRun();
+        long sum = 0;
+        for (int i = 0; i < RUN_PAGES; i++) {
+            sum += read(from + i);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long readRunVectored() throws Exception {
+        int from = randomRun();
+        int[] pageNos = new int[RUN_PAGES];
+        for (int i = 0; i < RUN_PAGES; i++) {
+            pageNos[i] = from + i;
+        }
+        long sum = 0;
+        for (Page page : pc.getPages(pageNos)) {
+            sum += PageX.getFSO(page);
+            page.release();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long readRunAsync() {
+        int from = randomRun();
+        List<CompletableFuture<Page>> futures = new ArrayList<>(RUN_PAGES);
+        for (int i = 0; i < RUN_PAGES; i++) {
+            futures.add(pc.getPageAsync(from + i));
+        }
+        long sum = 0;
+        for (CompletableFuture<Page> future : futures) {
+            Page page = future.join();
+            sum += PageX.getFSO(page);
+            page.release();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public long scanHeap(HeapCounters counters) throws Exception {
+        return readRun();
+    }
+
+    private long read(int pageNo) throws Exception {
+        Page page = pc.getPage(pageNo);
+        try {
+            return PageX.getFSO(page);
+        } finally {
+            page.release();
+        }
+    }
+
+    private int randomRun() {
+        return HOT_PAGES + 1 + ThreadLocalRandom.current().nextInt(FILE_PAGES - HOT_PAGES - RUN_PAGES + 1);
+    }
+
+    /**
+     * 每轮迭代的GC次数和耗时，以及迭代结束并GC之后的堆占用；结果是所有测量迭代的合计，堆占用除以迭代次数得到平均值
+     * <p>GC是进程级的，每个线程报告同一份数据，用{@code -t 1}运行</p>
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class HeapCounters {
+
+        public long gcCount;
+        public long gcMillis;
+        public long heapUsedKB;
+
+        private long baseCount;
+        private long baseMillis;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            gcCount = 0;
+            gcMillis = 0;
+            heapUsedKB = 0;
+            baseCount = collections();
+            baseMillis = collectionMillis();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            gcCount = collections() - baseCount;
+            gcMillis = collectionMillis() - baseMillis;
+            System.gc();
+            heapUsedKB = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() >> 10;
+        }
+
+        private static long collections() {
+            long count = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+            }
+            return count;
+        }
+
+        private static long collectionMillis() {
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+            return millis;
+        }
+
+    }
+
+}
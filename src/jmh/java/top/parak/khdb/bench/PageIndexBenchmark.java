@@ -0,0 +1,106 @@
+package top.parak.khdb.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.parak.khdb.server.dm.page.Page;
+import top.parak.khdb.server.dm.page.PageX;
+import top.parak.khdb.server.dm.pagecache.PageCache;
+import top.parak.khdb.server.dm.pageindex.PageIndex;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 启动时重建页空闲空间索引的耗时
+ * <ol>
+ * <li>rebuild：并行扫描，每个任务顺序读取一段页，不经过缓存</li>
+ * <li>rebuildThroughCache：单线程逐页通过缓存获取，页数远大于缓存容量，获取的页不断淘汰缓存中的页</li>
+ * </ol>
+ * <p>每页插入随机长度的数据，空闲空间分布在各个区间</p>
+ *
+ * @author KHighness
+ * @since 2022-07-14
+ * @email parakovo@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageIndexBenchmark {
+
+    private static final int CACHE_PAGES = 1024;
+
+    @Param({"8192", "65536"})
+    public int pages;
+
+    private File dir;
+    private PageCache pc;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = BenchFiles.createDir("khdb-index");
+        String path = new File(dir, "bench").getPath();
+        long memory = (long) CACHE_PAGES * PageCache.PAGE_SIZE;
+        PageCache init = PageCache.create(path, memory);
+        init.newPages(pages, PageX.initRaw());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int pageNo = 2; pageNo <= pages; pageNo++) {
+            Page page = init.getPage(pageNo);
+            try {
+                page.lock();
+                try {
+                    PageX.insert(page, new byte[random.nextInt(PageX.MAX_FREE_SPACE)]);
+                    page.setDirty(true);
+                } finally {
+                    page.unlock();
+                }
+            } finally {
+                page.release();
+            }
+        }
+        init.close();
+        pc = PageCache.open(path, memory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pc.close();
+        BenchFiles.delete(dir);
+    }
+
+    @Benchmark
+    public PageIndex rebuild() {
+        PageIndex index = new PageIndex(pc);
+        index.rebuild();
+        return index;
+    }
+
+    @Benchmark
+    public PageIndex rebuildThroughCache() throws Exception {
+        PageIndex index = new PageIndex(pc);
+        for (int pageNo = 2; pageNo <= pc.getPageNumber(); pageNo++) {
+            Page page = pc.getPage(pageNo);
+            try {
+                index.add(pageNo, PageX.readFreeSpace(page));
+            } finally {
+                page.release();
+            }
+        }
+        return index;
+    }
+
+}
@@ -0,0 +1,130 @@
+package top.parak.khdb.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.parak.khdb.server.dm.Recover;
+import top.parak.khdb.server.dm.logger.Logger;
+import top.parak.khdb.server.dm.page.Page;
+import top.parak.khdb.server.dm.page.PageX;
+import top.parak.khdb.server.dm.pagecache.PageCache;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 页插入吞吐量
+ * <ol>
+ * <li>insert：获取页、加锁、插入、释放，页写满后分配新页</li>
+ * <li>insertLogged：插入之前先追加重做日志并推进PageLSN，与DM的插入路径一致，日志不fsync</li>
+ * </ol>
+ * <p>每个线程向自己的页插入，每轮迭代使用新的数据文件</p>
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageInsertBenchmark {
+
+    private static final int CACHE_PAGES = 4096;
+
+    @Param({"16", "128"})
+    public int recordSize;
+
+    private File dir;
+    private PageCache pc;
+    private Logger lg;
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        dir = BenchFiles.createDir("khdb-insert");
+        String path = new File(dir, "bench").getPath();
+        pc = PageCache.create(path, (long) CACHE_PAGES * PageCache.PAGE_SIZE);
+        lg = Logger.create(path);
+        pc.setLogger(lg);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        pc.close();
+        lg.close();
+        BenchFiles.delete(dir);
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+
+        byte[] record;
+        int pageNo;
+
+        @Setup(Level.Iteration)
+        public void setup(PageInsertBenchmark bench) {
+            record = new byte[bench.recordSize];
+            ThreadLocalRandom.current().nextBytes(record);
+            pageNo = 0;
+        }
+
+    }
+
+    @Benchmark
+    public short insert(Writer writer) throws Exception {
+        Page page = pageFor(writer);
+        page.lock();
+        try {
+            page.setDirty(true);
+            return PageX.insert(page, writer.record);
+        } finally {
+            page.unlock();
+            page.release();
+        }
+    }
+
+    @Benchmark
+    public short insertLogged(Writer writer) throws Exception {
+        Page page = pageFor(writer);
+        page.lock();
+        try {
+            short offset = PageX.getFSO(page);
+            long lsn = lg.append(Recover.insertLog(1, page.getPageNumber(), offset, writer.record));
+            PageX.insert(page, writer.record);
+            PageX.setLSN(page, lsn);
+            return offset;
+        } finally {
+            page.unlock();
+            page.release();
+        }
+    }
+
+    /**
+     * 获取线程当前插入的页，空间不足时分配新页
+     */
+    private Page pageFor(Writer writer) throws Exception {
+        if (writer.pageNo != 0) {
+            Page page = pc.getPage(writer.pageNo);
+            if (PageX.getFreeSpace(page) >= writer.record.length) {
+                return page;
+            }
+            page.release();
+        }
+        writer.pageNo = pc.newPage(PageX.initRaw());
+        return pc.getPage(writer.pageNo);
+    }
+
+}
@@ -0,0 +1,98 @@
+package top.parak.khdb.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.parak.khdb.server.dm.page.Page;
+import top.parak.khdb.server.dm.page.PageX;
+import top.parak.khdb.server.dm.pagecache.PageCache;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 少数热点页上的并发读，比较排他锁、共享锁和乐观读，线程数用{@code -t}指定
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PageLatchBenchmark {
+
+    private static final int HOT_PAGES = 4;
+
+    private File dir;
+    private PageCache pc;
+    private Page[] pages;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = BenchFiles.createDir("khdb-latch");
+        pc = PageCache.create(new File(dir, "bench").getPath(), 64L * PageCache.PAGE_SIZE);
+        pages = new Page[HOT_PAGES];
+        for (int i = 0; i < HOT_PAGES; i++) {
+            pages[i] = pc.getPage(pc.newPage(PageX.initRaw()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (Page page : pages) {
+            page.release();
+        }
+        pc.close();
+        BenchFiles.delete(dir);
+    }
+
+    @Benchmark
+    public long exclusive() {
+        Page page = hotPage();
+        page.lock();
+        try {
+            return readHeader(page);
+        } finally {
+            page.unlock();
+        }
+    }
+
+    @Benchmark
+    public long shared() {
+        Page page = hotPage();
+        page.lockShared();
+        try {
+            return readHeader(page);
+        } finally {
+            page.unlockShared();
+        }
+    }
+
+    @Benchmark
+    public long optimistic() {
+        return hotPage().read(PageLatchBenchmark::readHeader);
+    }
+
+    private Page hotPage() {
+        return pages[ThreadLocalRandom.current().nextInt(HOT_PAGES)];
+    }
+
+    private static long readHeader(Page page) {
+        return PageX.getLSN(page) + PageX.getFSO(page);
+    }
+
+}
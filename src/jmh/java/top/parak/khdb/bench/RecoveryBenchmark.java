@@ -0,0 +1,149 @@
+package top.parak.khdb.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import top.parak.khdb.server.dm.Recover;
+import top.parak.khdb.server.dm.logger.LogReader;
+import top.parak.khdb.server.dm.logger.Logger;
+import top.parak.khdb.server.dm.page.PageX;
+import top.parak.khdb.server.dm.pagecache.PageCache;
+import top.parak.khdb.server.dm.pagecache.PageCacheImpl;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 恢复速度
+ * <ol>
+ * <li>scan：顺序读取并校验全部日志</li>
+ * <li>recover：把全部日志重做到空的数据文件，每次调用前复制一份空文件</li>
+ * </ol>
+ * <p>日志中插入和更新约为2:1，分布在{@value #PAGES}个页上</p>
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecoveryBenchmark {
+
+    private static final int PAGES = 1024;
+    private static final int RECORDS = 200_000;
+    private static final int INSERT_SIZE = 32;
+    private static final int UPDATE_SIZE = 16;
+    /**
+     * 页中数据区的起始位置
+     */
+    private static final short DATA_START = (short) (PageCache.PAGE_SIZE - PageX.MAX_FREE_SPACE);
+    private static final long CACHE_MEMORY = (long) (PAGES + 1) * PageCache.PAGE_SIZE;
+
+    @State(Scope.Benchmark)
+    public static class Dataset {
+
+        File dir;
+        File emptyDb;
+        Logger lg;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            dir = BenchFiles.createDir("khdb-recover");
+            String path = new File(dir, "empty").getPath();
+            PageCache pc = PageCache.create(path, CACHE_MEMORY);
+            for (int i = 0; i < PAGES; i++) {
+                pc.newPage(PageX.initRaw());
+            }
+            pc.close();
+            emptyDb = new File(path + PageCacheImpl.DB_SUFFIX);
+
+            lg = Logger.create(new File(dir, "log").getPath());
+            short[] fso = new short[PAGES + 1];
+            Arrays.fill(fso, DATA_START);
+            Random random = new Random(PAGES);
+            byte[] insert = new byte[INSERT_SIZE];
+            byte[] oldRaw = new byte[UPDATE_SIZE];
+            byte[] newRaw = new byte[UPDATE_SIZE];
+            for (int i = 0; i < RECORDS; i++) {
+                int pgno = 1 + random.nextInt(PAGES);
+                short offset = fso[pgno];
+                boolean canInsert = offset + INSERT_SIZE <= PageCache.PAGE_SIZE;
+                boolean canUpdate = offset - UPDATE_SIZE >= DATA_START;
+                if (canInsert && (!canUpdate || random.nextInt(3) > 0)) {
+                    random.nextBytes(insert);
+                    lg.append(Recover.insertLog(i, pgno, offset, insert));
+                    fso[pgno] += INSERT_SIZE;
+                } else {
+                    random.nextBytes(newRaw);
+                    lg.append(Recover.updateLog(i, pgno, (short) (offset - UPDATE_SIZE), oldRaw, newRaw));
+                }
+            }
+            lg.flushUpTo(Long.MAX_VALUE);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            lg.close();
+            BenchFiles.delete(dir);
+        }
+
+    }
+
+    @State(Scope.Thread)
+    public static class Target {
+
+        @Param({"1", "4"})
+        public int workers;
+
+        File db;
+        PageCache pc;
+
+        @Setup(Level.Invocation)
+        public void setup(Dataset dataset) throws Exception {
+            String path = new File(dataset.dir, "target").getPath();
+            db = new File(path + PageCacheImpl.DB_SUFFIX);
+            Files.copy(dataset.emptyDb.toPath(), db.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            pc = PageCache.open(path, CACHE_MEMORY);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            pc.close();
+            db.delete();
+        }
+
+    }
+
+    @Benchmark
+    public long scan(Dataset dataset) {
+        LogReader reader = dataset.lg.reader();
+        long bytes = 0;
+        while (reader.next()) {
+            bytes += reader.data().length();
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public void recover(Dataset dataset, Target target) {
+        Recover.recover(dataset.lg, target.pc, target.workers);
+    }
+
+}
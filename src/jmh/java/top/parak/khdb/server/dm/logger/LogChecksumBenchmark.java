@@ -0,0 +1,55 @@
+package top.parak.khdb.server.dm.logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 日志校验和算法的对比，{@link LogChecksum}是包内可见的，基准测试放在同一个包中
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogChecksumBenchmark {
+
+    @Param({"64", "1024", "8192"})
+    public int size;
+
+    private byte[] log;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        log = new byte[LoggerImpl.OFFSET_DATA + size];
+        new Random(size).nextBytes(log);
+    }
+
+    @Benchmark
+    public int polynomial() {
+        return LogChecksum.POLYNOMIAL.checkSum(log, 0, size);
+    }
+
+    @Benchmark
+    public int crc32c() {
+        return LogChecksum.CRC32C.checkSum(log, 0, size);
+    }
+
+}
@@ -15,6 +15,7 @@ public class Error {
 
     /*================================================= dm =================================================*/
     public static final Exception BadLogFileException = new RuntimeException("Bad log file");
+    public static final Exception BadLayoutException = new RuntimeException("Data file layout mismatch");
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy");
@@ -2,13 +2,43 @@ package top.parak.khdb.server.common;
 
 import top.parak.khdb.common.Error;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
 
 /**
  * 引用计数缓存
+ * <p>命中路径只锁定key所在的桶，不同key之间互不阻塞；
+ * 同一个key的加载只执行一次，其他线程挂起在加载的future上，加载完成后立即唤醒；
+ * {@link #getAsync}未命中时把占位、淘汰和加载都交给线程池，与同步获取共享同一次加载</p>
+ * <p><b>2Q淘汰策略</b></p>
+ * <ol>
+ * <li>引用计数为0的资源继续留在缓存中，只有缓存已满时才淘汰</li>
+ * <li>A1in：首次进入缓存的资源，FIFO淘汰，被淘汰的key记入A1out</li>
+ * <li>A1out：只记录key的幽灵队列，再次未命中的key直接进入Am</li>
+ * <li>Am：多次访问的热点资源，使用CLOCK近似LRU淘汰</li>
+ * <li>顺序扫描只会冲刷A1in，不会挤掉Am中的热点资源</li>
+ * <li>只有所有资源都被引用时，才抛出{@code CacheFullException}</li>
+ * <li>被淘汰的资源在桶锁内摘下，{@link #releaseForCache}在桶锁之外写回，
+ * 写回完成之前同一个key的加载和{@link #offer}等待或放弃，不会读到旧数据</li>
+ * </ol>
+ * <p><b>统计</b></p>
+ * <p>命中、未命中、淘汰、缓存已满和引用数使用{@link LongAdder}计数，未命中的加载延迟记入直方图，
+ * 命中路径只多一次累加，{@link #getCacheStats()}读取时才汇总</p>
  *
  * @author KHighness
  * @since 2022-06-14
@@ -17,126 +47,577 @@ import java.util.concurrent.locks.ReentrantLock;
 public abstract class AbstractCache<T> {
 
     /**
-     * 实际缓存的数量
+     * 缓存条目，包括正在被获取的资源
      */
-    private HashMap<Long, T> cache;
+    private final ConcurrentHashMap<Long, Entry<T>> cache;
     /**
-     * 元素的引用个数
+     * 已经摘下、正在由{@link #releaseForCache}写回的key
      */
-    private HashMap<Long, Integer> refrences;
-    /**
-     * 正在被获取的资源
-     */
-    private HashMap<Long, Boolean> getting;
+    private final ConcurrentHashMap<Long, Eviction<T>> evicting;
 
     /**
      * 最大缓存资源数量
      */
-    private int maxResource;
+    private final int maxResource;
     /**
      * 缓存中元素的个数
      */
-    private int count = 0;
-    private Lock lock;
+    private final AtomicInteger count;
+
+    /**
+     * A1in队列的容量
+     */
+    private final int maxIn;
+    /**
+     * A1out队列的容量
+     */
+    private final int maxOut;
+    private final LinkedHashSet<Long> in;
+    private final LinkedHashSet<Long> out;
+    private final LinkedHashSet<Long> main;
+    /**
+     * 保护淘汰队列，只在未命中和淘汰时获取
+     */
+    private final Lock policyLock;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+    private final LongAdder cacheFull;
+    /**
+     * 未释放的引用数
+     */
+    private final LongAdder pinned;
+    private final LatencyHistogram missLatency;
 
     public AbstractCache(int maxResource) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        refrences = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.cache = new ConcurrentHashMap<>();
+        this.evicting = new ConcurrentHashMap<>();
+        this.count = new AtomicInteger(0);
+        this.maxIn = Math.max(1, maxResource / 4);
+        this.maxOut = Math.max(1, maxResource / 2);
+        this.in = new LinkedHashSet<>();
+        this.out = new LinkedHashSet<>();
+        this.main = new LinkedHashSet<>();
+        this.policyLock = new ReentrantLock();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+        this.cacheFull = new LongAdder();
+        this.pinned = new LongAdder();
+        this.missLatency = new LatencyHistogram();
     }
 
     protected T get(long key) throws Exception {
         while (true) {
-            lock.lock();
+            // 尝试在缓存中获取，资源可能仍在加载中
+            Entry<T> entry = pin(key);
+            if (entry != null) {
+                T obj = await(entry);
+                pinned.increment();
+                return obj;
+            }
+
+            Entry<T> created = claim(key);
+            if (created == null) {
+                // 其他线程抢先开始获取，重新尝试
+                continue;
+            }
+            return load(key, created, System.nanoTime());
+        }
+    }
+
+    /**
+     * 异步获取资源，未命中时在executor中加载
+     * <p>调用线程只尝试引用已有的条目，不阻塞：占位、缓存已满时的淘汰和写回都与加载一起在executor中进行；
+     * 同一个key正在加载时，返回的future与正在进行的加载共享结果，不会重复加载；
+     * 缓存已满、executor拒绝或加载失败时future异常完成</p>
+     *
+     * @param key      key
+     * @param executor 执行加载的线程池
+     * @return 资源的future，完成之后资源被引用，使用完需要释放
+     */
+    protected CompletableFuture<T> getAsync(long key, Executor executor) {
+        Entry<T> entry = pin(key);
+        if (entry != null) {
+            return entry.future.thenApply(obj -> {
+                pinned.increment();
+                return obj;
+            });
+        }
 
-            // 其他线程正在获取资源
-            // 等待一段时间重新尝试
-            if (getting.containsKey(key)) {
-                lock.unlock();
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
                 try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    continue;
+                    future.complete(get(key));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 只在资源已经加载完成时获取，不触发加载
+     *
+     * @param key key
+     * @return 资源，null代表不在缓存中
+     */
+    protected T getIfCached(long key) {
+        boolean[] acquired = new boolean[1];
+        Entry<T> entry = cache.computeIfPresent(key, (k, e) -> {
+            if (e.future.isDone()) {
+                e.references++;
+                acquired[0] = true;
+            }
+            return e;
+        });
+        if (!acquired[0]) {
+            return null;
+        }
+        pinned.increment();
+        return entry.future.join();
+    }
+
+    /**
+     * 放入一个已经加载好的资源，不增加引用，用于预读
+     *
+     * @param key   key
+     * @param obj   资源
+     * @param valid 在key的桶锁内检查obj是否仍然有效
+     * @return false代表资源已在缓存中或正在淘汰、obj已失效或所有资源都被引用，调用方需要自行回收obj
+     */
+    protected boolean offer(long key, T obj, BooleanSupplier valid) {
+        if (cache.containsKey(key)) {
+            return false;
+        }
+        while (!reserve()) {
+            if (!evict()) {
+                return false;
+            }
+        }
+        Entry<T> created = new Entry<>();
+        created.references = 0;
+        created.future.complete(obj);
+        boolean[] offered = new boolean[1];
+        cache.compute(key, (k, e) -> {
+            if (e != null || evicting.containsKey(k) || !valid.getAsBoolean()) {
+                return e;
+            }
+            offered[0] = true;
+            return created;
+        });
+        if (!offered[0]) {
+            count.decrementAndGet();
+            return false;
+        }
+        admit(key);
+        return true;
+    }
+
+    /**
+     * 判断资源是否在缓存中，包括正在加载的资源
+     *
+     * @param key key
+     * @return true代表在缓存中
+     */
+    protected boolean contains(long key) {
+        return cache.containsKey(key);
+    }
+
+    /**
+     * 遍历所有已经加载完成的资源，不增加引用
+     * <p>之后再遍历已经摘下、还在由{@link #releaseForCache}写回的资源：
+     * 资源总是先登记到{@code evicting}再从缓存中移除，遍历期间被淘汰的资源不会被漏掉</p>
+     *
+     * @param action 操作
+     */
+    protected void forEachCached(Consumer<T> action) {
+        for (Entry<T> entry : cache.values()) {
+            if (entry.future.isCompletedExceptionally()) {
                 continue;
             }
+            T obj = entry.future.getNow(null);
+            if (obj != null) {
+                action.accept(obj);
+            }
+        }
+        for (Eviction<T> eviction : evicting.values()) {
+            action.accept(eviction.obj);
+        }
+    }
 
-            // 尝试在缓存中获取
-            if (cache.containsKey(key)) {
-                T obj = cache.get(key);
-                refrences.put(key, refrences.get(key) + 1);
-                lock.unlock();
-                return obj;
+    /**
+     * 丢弃key满足条件的资源，不调用{@link #releaseForCache}，用于截断之后作废的资源
+     * <p>返回时这些key也没有正在进行的淘汰写回；
+     * action对每个被丢弃且已经加载完成的资源调用一次，第二个参数表示资源是否仍被引用，
+     * 仍被引用的资源只从缓存中移除，由持有者继续使用</p>
+     *
+     * @param drop   需要丢弃的key
+     * @param action 回收被丢弃的资源
+     */
+    protected void discard(LongPredicate drop, BiConsumer<T, Boolean> action) {
+        for (Long key : cache.keySet()) {
+            if (!drop.test(key)) {
+                continue;
+            }
+            Entry<T> entry = cache.remove(key);
+            if (entry == null) {
+                continue;
+            }
+            count.decrementAndGet();
+            forget(key);
+            if (entry.future.isDone() && !entry.future.isCompletedExceptionally()) {
+                action.accept(entry.future.join(), entry.references > 0);
+            }
+        }
+        for (Map.Entry<Long, Eviction<T>> e : evicting.entrySet()) {
+            if (drop.test(e.getKey())) {
+                e.getValue().done.join();
+            }
+        }
+    }
+
+    protected void release(long key) {
+        cache.computeIfPresent(key, (k, e) -> {
+            e.references--;
+            return e;
+        });
+        pinned.decrement();
+    }
+
+    /**
+     * 汇总计数器
+     *
+     * @return 快照
+     */
+    protected CacheStats getCacheStats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), cacheFull.sum(),
+                pinned.sum(), count.get(), maxResource, missLatency.snapshot());
+    }
+
+    protected void close() {
+        for (Map.Entry<Long, Entry<T>> e : cache.entrySet()) {
+            T obj = e.getValue().future.getNow(null);
+            if (obj != null) {
+                releaseForCache(obj);
             }
+            cache.remove(e.getKey());
+        }
+        count.set(0);
+        policyLock.lock();
+        try {
+            in.clear();
+            out.clear();
+            main.clear();
+        } finally {
+            policyLock.unlock();
+        }
+    }
 
-            // 资源不在缓存中，缓存已满
-            if (maxResource > 0 && count == maxResource) {
-                lock.unlock();
+    protected abstract T getForCache(long key) throws Exception;
+
+    protected abstract void releaseForCache(T obj);
+
+    /**
+     * 在缓存中查找资源并增加引用
+     *
+     * @param key key
+     * @return 缓存条目，资源可能仍在加载中，null代表不在缓存中
+     */
+    private Entry<T> pin(long key) {
+        Entry<T> entry = cache.computeIfPresent(key, (k, e) -> {
+            e.references++;
+            return e;
+        });
+        if (entry != null) {
+            entry.referenced = true;
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * 资源不在缓存中，占用一个位置并放入加载中的条目，缓存已满时淘汰一个未被引用的资源
+     *
+     * @param key key
+     * @return 由调用方加载的条目，null代表其他线程抢先开始获取
+     */
+    private Entry<T> claim(long key) throws Exception {
+        while (!reserve()) {
+            if (!evict()) {
+                cacheFull.increment();
                 throw Error.CacheFullException;
             }
-            count++;
-            getting.put(key, true);
-            lock.unlock();
-            break;
         }
+        Entry<T> created = new Entry<>();
+        if (cache.putIfAbsent(key, created) != null) {
+            count.decrementAndGet();
+            return null;
+        }
+        admit(key);
+        misses.increment();
+        return created;
+    }
 
-        // 资源不在缓存中，放入缓存
-        T obj = null;
+    /**
+     * 加载资源并完成条目的future，等待在条目上的线程随之唤醒
+     *
+     * @param key     key
+     * @param created {@link #claim}放入的条目
+     * @param start   开始获取的时间
+     * @return 资源
+     */
+    private T load(long key, Entry<T> created, long start) throws Exception {
+        T obj;
         try {
+            // 同一个key的旧资源还在写回，写回完成之后才能读取
+            Eviction<T> eviction = evicting.get(key);
+            if (eviction != null) {
+                eviction.done.join();
+            }
             obj = getForCache(key);
         } catch (Exception e) {
-            lock.lock();
-            count--;
-            getting.remove(key);
-            lock.unlock();
+            abandon(key, created, e);
             throw e;
         }
-
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        refrences.put(key, 1);
-        lock.unlock();
+        missLatency.recordSince(start);
+        pinned.increment();
+        created.future.complete(obj);
         return obj;
     }
 
-    protected void release(long key) {
-        lock.lock();
+    /**
+     * 加载失败，移除条目并让等待的线程失败
+     */
+    private void abandon(long key, Entry<T> created, Exception e) {
+        // 条目可能已经被discard移除
+        if (cache.remove(key, created)) {
+            count.decrementAndGet();
+            forget(key);
+        }
+        created.future.completeExceptionally(e);
+    }
+
+    /**
+     * 占用一个缓存位置
+     *
+     * @return false代表缓存已满
+     */
+    private boolean reserve() {
+        while (true) {
+            int c = count.get();
+            if (maxResource > 0 && c >= maxResource) {
+                return false;
+            }
+            if (count.compareAndSet(c, c + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 新资源进入缓存，A1out中的key直接进入Am
+     *
+     * @param key key
+     */
+    private void admit(long key) {
+        policyLock.lock();
         try {
-            int ref = refrences.get(key) - 1;
-            if (ref == 0) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                refrences.remove(key);
-                cache.remove(key);
-                count--;
+            if (out.remove(key)) {
+                main.add(key);
             } else {
-                refrences.put(key, ref);
+                in.add(key);
             }
         } finally {
-            lock.unlock();
+            policyLock.unlock();
         }
     }
 
-    protected void close() {
-        lock.lock();
+    /**
+     * 资源加载失败，从淘汰队列中移除
+     *
+     * @param key key
+     */
+    private void forget(long key) {
+        policyLock.lock();
         try {
-            Set<Long> keys = cache.keySet();
-            for (Long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                refrences.remove(key);
-                cache.remove(key);
-            }
+            in.remove(key);
+            main.remove(key);
         } finally {
-            lock.unlock();
+            policyLock.unlock();
         }
     }
 
-    protected abstract T getForCache(long key) throws Exception;
+    /**
+     * 淘汰一个未被引用的资源
+     * <p>在桶锁内摘下条目并登记到{@code evicting}，在桶锁之外调用{@link #releaseForCache}，
+     * 写回和日志fsync不会阻塞同一个桶中其他key的获取，也不会阻塞扩容</p>
+     *
+     * @return false代表所有资源都被引用
+     */
+    private boolean evict() {
+        Long victim;
+        policyLock.lock();
+        try {
+            victim = selectVictim();
+        } finally {
+            policyLock.unlock();
+        }
+        if (victim == null) {
+            return false;
+        }
 
-    protected abstract void releaseForCache(T obj);
+        AtomicReference<Eviction<T>> detached = new AtomicReference<>();
+        cache.computeIfPresent(victim, (k, e) -> {
+            if (!e.isEvictable()) {
+                return e;
+            }
+            Eviction<T> removed = new Eviction<>(e.future.join());
+            evicting.put(k, removed);
+            detached.set(removed);
+            return null;
+        });
+        Eviction<T> eviction = detached.get();
+        if (eviction != null) {
+            try {
+                releaseForCache(eviction.obj);
+            } finally {
+                evicting.remove(victim, eviction);
+                eviction.done.complete(null);
+                count.decrementAndGet();
+                evictions.increment();
+            }
+        } else if (cache.containsKey(victim)) {
+            // 选中之后又被引用，放回Am
+            policyLock.lock();
+            try {
+                main.add(victim);
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A1in超过容量时优先淘汰A1in，否则淘汰Am
+     *
+     * @return 被选中的key，已从淘汰队列中移除，null代表所有资源都被引用
+     */
+    private Long selectVictim() {
+        Long victim = null;
+        if (in.size() > maxIn || main.isEmpty()) {
+            victim = selectFromIn();
+        }
+        if (victim == null) {
+            victim = selectFromMain();
+        }
+        if (victim == null) {
+            victim = selectFromIn();
+        }
+        return victim;
+    }
+
+    private Long selectFromIn() {
+        Iterator<Long> it = in.iterator();
+        while (it.hasNext()) {
+            Long key = it.next();
+            Entry<T> entry = cache.get(key);
+            if (entry == null) {
+                it.remove();
+                continue;
+            }
+            if (entry.isEvictable()) {
+                it.remove();
+                out.add(key);
+                if (out.size() > maxOut) {
+                    out.remove(out.iterator().next());
+                }
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private Long selectFromMain() {
+        // 每个key最多经过两轮：第一轮清除访问标记，第二轮淘汰
+        for (int i = main.size() * 2; i > 0 && !main.isEmpty(); i--) {
+            Long key = main.iterator().next();
+            main.remove(key);
+            Entry<T> entry = cache.get(key);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.referenced || !entry.isEvictable()) {
+                entry.referenced = false;
+                main.add(key);
+                continue;
+            }
+            return key;
+        }
+        return null;
+    }
+
+    /**
+     * 等待资源加载完成
+     *
+     * @param entry 缓存条目
+     * @return 资源
+     */
+    private T await(Entry<T> entry) throws Exception {
+        try {
+            return entry.future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 已经从缓存中摘下、正在写回的资源
+     */
+    private static class Eviction<T> {
+
+        final T obj;
+        /**
+         * 写回完成时完成，同一个key的加载在此等待
+         */
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Eviction(T obj) {
+            this.obj = obj;
+        }
+
+    }
+
+    private static class Entry<T> {
+
+        /**
+         * 资源加载结果，加载完成前其他线程在此等待
+         */
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        /**
+         * 元素的引用个数，只在桶锁内修改
+         */
+        volatile int references = 1;
+        /**
+         * CLOCK访问标记
+         */
+        volatile boolean referenced;
+
+        boolean isEvictable() {
+            return references == 0 && future.isDone();
+        }
+
+    }
 
 }
@@ -0,0 +1,85 @@
+package top.parak.khdb.server.common;
+
+/**
+ * {@link AbstractCache}计数器的快照
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+public class CacheStats {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long cacheFullCount;
+    private final long pinned;
+    private final int size;
+    private final int capacity;
+    private final LatencyHistogram.Snapshot missLatency;
+
+    CacheStats(long hits, long misses, long evictions, long cacheFullCount,
+               long pinned, int size, int capacity, LatencyHistogram.Snapshot missLatency) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.cacheFullCount = cacheFullCount;
+        this.pinned = pinned;
+        this.size = size;
+        this.capacity = capacity;
+        this.missLatency = missLatency;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * 未命中次数，包括加载失败的次数
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    public double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * 抛出{@code CacheFullException}的次数
+     */
+    public long getCacheFullCount() {
+        return cacheFullCount;
+    }
+
+    /**
+     * 当前未释放的引用数，同一个资源被多次获取时重复计算
+     */
+    public long getPinned() {
+        return pinned;
+    }
+
+    /**
+     * 当前缓存的资源数，包括正在加载的资源
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 未命中时加载资源的延迟
+     */
+    public LatencyHistogram.Snapshot getMissLatency() {
+        return missLatency;
+    }
+
+}
@@ -0,0 +1,121 @@
+package top.parak.khdb.server.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟直方图
+ * <p>第i个桶记录{@code [2^(i-1), 2^i)}纳秒的样本，每个桶是一个{@link LongAdder}，
+ * 记录只做两次无竞争的累加，读取时才汇总；分位数取所在桶的上界，误差在2倍以内</p>
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets;
+    private final LongAdder totalNanos;
+
+    public LatencyHistogram() {
+        this.buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+        this.totalNanos = new LongAdder();
+    }
+
+    /**
+     * 记录一个样本
+     *
+     * @param nanos 延迟，单位纳秒
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets[BUCKETS - Long.numberOfLeadingZeros(nanos)].increment();
+        totalNanos.add(nanos);
+    }
+
+    /**
+     * 记录从startNanos到现在的延迟
+     *
+     * @param startNanos {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return new Snapshot(counts, totalNanos.sum());
+    }
+
+    /**
+     * 直方图的快照，记录期间读取时各个桶之间不保证一致
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long totalNanos;
+
+        Snapshot(long[] counts, long totalNanos) {
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.counts = counts;
+            this.count = count;
+            this.totalNanos = totalNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public double getMeanNanos() {
+            return count == 0 ? 0 : (double) totalNanos / count;
+        }
+
+        /**
+         * 分位数
+         *
+         * @param quantile 0到1之间
+         * @return 分位数所在桶的上界，没有样本时为0
+         */
+        public long getQuantileNanos(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(counts.length - 1);
+        }
+
+        public long getMaxNanos() {
+            return getQuantileNanos(1);
+        }
+
+        private static long upperBound(int bucket) {
+            return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+
+    }
+
+}
@@ -0,0 +1,49 @@
+package top.parak.khdb.server.common;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+/**
+ * 在平台MBeanServer上注册统计，名称为{@code top.parak.khdb:type=<type>,path="<文件路径>"}
+ * <p>注册失败不影响使用，统计仍然可以通过快照读取</p>
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+public class MBeans {
+
+    private static final String DOMAIN = "top.parak.khdb";
+
+    /**
+     * 注册MBean
+     *
+     * @param type  类型
+     * @param path  文件路径
+     * @param mbean MBean
+     * @return 注册的名称，null代表注册失败，例如同一个文件被重复打开
+     */
+    public static ObjectName register(String type, String path, Object mbean) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=" + type
+                    + ",path=" + ObjectName.quote(new File(path).getAbsolutePath()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+            return name;
+        } catch (JMException e) {
+            return null;
+        }
+    }
+
+    public static void unregister(ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException ignored) {
+        }
+    }
+
+}
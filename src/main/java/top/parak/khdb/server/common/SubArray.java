@@ -1,20 +1,181 @@
 package top.parak.khdb.server.common;
 
+import top.parak.khdb.toolkit.Codec;
+
+import java.nio.ByteBuffer;
+
 /**
+ * 字节数组或页帧上{@code [start, end)}范围的视图，不复制数据
+ * <p>堆内存上的视图可以通过{@code raw}直接访问数组，堆外页帧和只读视图的{@code raw}为null；
+ * 读写使用相对start的偏移量，按大端序，越界抛出{@link IndexOutOfBoundsException}，
+ * 只读视图写入抛出{@link java.nio.ReadOnlyBufferException}</p>
+ *
  * @author KHighness
  * @since 2022-06-28
  * @email parakovo@gmail.com
  */
 public class SubArray {
 
-    public byte[] raw;
-    private int start;
-    private int end;
+    public final byte[] raw;
+    public final int start;
+    public final int end;
+    private final ByteBuffer buffer;
 
     public SubArray(byte[] raw, int start, int end) {
-        this.raw = raw;
+        this(ByteBuffer.wrap(raw), start, end);
+    }
+
+    /**
+     * @param buffer 底层数据，start和end是buffer中的绝对位置，不能超过buffer的limit
+     */
+    public SubArray(ByteBuffer buffer, int start, int end) {
+        if (start < 0 || start > end || end > buffer.limit()) {
+            throw new IndexOutOfBoundsException("[" + start + ", " + end + ") of " + buffer.limit());
+        }
+        this.buffer = buffer;
+        this.raw = buffer.hasArray() && buffer.arrayOffset() == 0 ? buffer.array() : null;
         this.start = start;
         this.end = end;
     }
 
+    public int length() {
+        return end - start;
+    }
+
+    public boolean isReadOnly() {
+        return buffer.isReadOnly();
+    }
+
+    /**
+     * 只读视图，与原视图共享数据
+     */
+    public SubArray asReadOnly() {
+        return isReadOnly() ? this : new SubArray(buffer.asReadOnlyBuffer(), start, end);
+    }
+
+    /**
+     * 相对偏移量{@code [from, to)}的子视图
+     */
+    public SubArray slice(int from, int to) {
+        checkRange(from, to - from);
+        return new SubArray(buffer, start + from, start + to);
+    }
+
+    /**
+     * 以ByteBuffer访问视图，position为0，limit为length，与视图共享数据
+     */
+    public ByteBuffer asByteBuffer() {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(end);
+        view.position(start);
+        return view.slice();
+    }
+
+    public byte get(int offset) {
+        checkRange(offset, 1);
+        return buffer.get(start + offset);
+    }
+
+    public void put(int offset, byte value) {
+        checkRange(offset, 1);
+        buffer.put(start + offset, value);
+    }
+
+    public short getShort(int offset) {
+        checkRange(offset, 2);
+        return Codec.getShort(buffer, start + offset);
+    }
+
+    public void putShort(int offset, short value) {
+        checkRange(offset, 2);
+        Codec.putShort(buffer, start + offset, value);
+    }
+
+    public int getInt(int offset) {
+        checkRange(offset, 4);
+        return Codec.getInt(buffer, start + offset);
+    }
+
+    public void putInt(int offset, int value) {
+        checkRange(offset, 4);
+        Codec.putInt(buffer, start + offset, value);
+    }
+
+    public long getLong(int offset) {
+        checkRange(offset, 8);
+        return Codec.getLong(buffer, start + offset);
+    }
+
+    public void putLong(int offset, long value) {
+        checkRange(offset, 8);
+        Codec.putLong(buffer, start + offset, value);
+    }
+
+    /**
+     * 将src写入offset位置
+     */
+    public void put(int offset, byte[] src) {
+        checkRange(offset, src.length);
+        Codec.putBytes(buffer, start + offset, src, 0, src.length);
+    }
+
+    /**
+     * 复制视图的数据
+     */
+    public byte[] toArray() {
+        byte[] copy = new byte[length()];
+        if (raw != null) {
+            System.arraycopy(raw, start, copy, 0, copy.length);
+        } else {
+            asByteBuffer().get(copy);
+        }
+        return copy;
+    }
+
+    /**
+     * 逐字节比较两个视图的内容，不复制数据
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SubArray)) {
+            return false;
+        }
+        SubArray that = (SubArray) o;
+        if (length() != that.length()) {
+            return false;
+        }
+        for (int i = 0; i < length(); i++) {
+            if (buffer.get(start + i) != that.buffer.get(that.start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 与{@link java.util.Arrays#hashCode(byte[])}对相同内容的结果一致
+     */
+    @Override
+    public int hashCode() {
+        int h = 1;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + buffer.get(i);
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "SubArray[" + start + ", " + end + ")";
+    }
+
+    private void checkRange(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > length()) {
+            throw new IndexOutOfBoundsException("[" + offset + ", " + (offset + length) + ") of " + length());
+        }
+    }
+
 }
@@ -0,0 +1,296 @@
+package top.parak.khdb.server.dm;
+
+import top.parak.khdb.common.Panic;
+import top.parak.khdb.server.common.SubArray;
+import top.parak.khdb.server.dm.logger.LogReader;
+import top.parak.khdb.server.dm.logger.Logger;
+import top.parak.khdb.server.dm.page.Page;
+import top.parak.khdb.server.dm.page.PageX;
+import top.parak.khdb.server.dm.pagecache.PageCache;
+import top.parak.khdb.toolkit.RunLength;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 重做恢复
+ * <p><b>日志格式</b></p>
+ * <ol>
+ * <li>insertLog: [LogType] [XID] [Pgno] [Offset] [RLE(Raw)]</li>
+ * <li>updateLog: [LogType] [XID] [Pgno] [Offset] [RLE(OldRaw ^ NewRaw)]</li>
+ * </ol>
+ * <p>XID、Pgno和Offset使用varint编码，数据使用{@link RunLength}编码；
+ * 更新只记录新旧数据的异或差量，未修改的字节压缩为ZERO段，重做时直接在页上解码</p>
+ * <p>旧格式的日志仍然可以重做：</p>
+ * <ol>
+ * <li>insertLog: [LogType] [XID] [Pgno] [Offset] [Raw]</li>
+ * <li>updateLog: [LogType] [XID] [Pgno] [Offset] [OldRaw] [NewRaw]，OldRaw和NewRaw等长</li>
+ * </ol>
+ * <p><b>并行重做</b></p>
+ * <ol>
+ * <li>调用线程顺序解析日志，按页号把日志分发给固定的worker，同一页的日志保持原有顺序</li>
+ * <li>每个worker通过页缓存重做自己负责的页，不同页之间并行</li>
+ * <li>PageLSN不小于日志LSN时，说明修改已经在页中，跳过；重做后把PageLSN推进到日志LSN，重复恢复是幂等的</li>
+ * </ol>
+ *
+ * @author KHighness
+ * @since 2022-07-10
+ * @email parakovo@gmail.com
+ */
+public class Recover {
+
+    private static final byte LOG_TYPE_INSERT = 0;
+    private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_INSERT_RLE = 2;
+    private static final byte LOG_TYPE_UPDATE_XOR = 3;
+
+    private static final int OF_TYPE = 0;
+    private static final int OF_XID = OF_TYPE + 1;
+    private static final int OF_PGNO = OF_XID + 8;
+    private static final int OF_OFFSET = OF_PGNO + 4;
+    private static final int OF_RAW = OF_OFFSET + 2;
+
+    /**
+     * 每个worker待处理的日志批数
+     */
+    private static final int QUEUE_BATCHES = 16;
+    /**
+     * 每批分发的日志条数
+     */
+    private static final int BATCH_SIZE = 64;
+    private static final List<RedoLog> END = Collections.emptyList();
+
+    public static byte[] insertLog(long xid, int pgno, short offset, byte[] raw) {
+        ByteArrayOutputStream out = logHeader(LOG_TYPE_INSERT_RLE, xid, pgno, offset, raw.length);
+        RunLength.encode(out, raw);
+        return out.toByteArray();
+    }
+
+    public static byte[] updateLog(long xid, int pgno, short offset, byte[] oldRaw, byte[] newRaw) {
+        ByteArrayOutputStream out = logHeader(LOG_TYPE_UPDATE_XOR, xid, pgno, offset, newRaw.length);
+        RunLength.encodeXor(out, oldRaw, newRaw);
+        return out.toByteArray();
+    }
+
+    private static ByteArrayOutputStream logHeader(byte type, long xid, int pgno, short offset, int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + length);
+        out.write(type);
+        RunLength.writeVarint(out, xid);
+        RunLength.writeVarint(out, pgno);
+        RunLength.writeVarint(out, offset);
+        return out;
+    }
+
+    public static void recover(Logger lg, PageCache pc) {
+        recover(lg, pc, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 重做日志中的所有修改
+     *
+     * @param lg      日志
+     * @param pc      页缓存
+     * @param workers 并行重做的线程数，必须大于0
+     */
+    public static void recover(Logger lg, PageCache pc, int workers) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("workers: " + workers);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "khdb-recover");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<BlockingQueue<List<RedoLog>>> queues = new ArrayList<>(workers);
+        List<List<RedoLog>> batches = new ArrayList<>(workers);
+        List<Future<?>> futures = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            BlockingQueue<List<RedoLog>> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+            queues.add(queue);
+            batches.add(new ArrayList<>(BATCH_SIZE));
+            futures.add(executor.submit(() -> {
+                redo(pc, queue);
+                return null;
+            }));
+        }
+
+        int maxPgno = 0;
+        Exception error = null;
+        try {
+            try {
+                LogReader reader = lg.reader();
+                while (reader.next()) {
+                    RedoLog log = parseLog(reader.data(), reader.lsn());
+                    maxPgno = Math.max(maxPgno, log.pgno);
+                    int worker = Math.floorMod(log.pgno, workers);
+                    List<RedoLog> batch = batches.get(worker);
+                    batch.add(log);
+                    if (batch.size() >= BATCH_SIZE) {
+                        queues.get(worker).put(batch);
+                        batches.set(worker, new ArrayList<>(BATCH_SIZE));
+                    }
+                }
+                for (int i = 0; i < workers; i++) {
+                    if (!batches.get(i).isEmpty()) {
+                        queues.get(i).put(batches.get(i));
+                    }
+                }
+            } catch (Exception e) {
+                // 日志损坏或类型未知，等worker退出之后再panic
+                error = e;
+            } finally {
+                // worker一直取走日志，END总能放入；不放入END的worker会永远阻塞在take上
+                for (BlockingQueue<List<RedoLog>> queue : queues) {
+                    queue.put(END);
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            Panic.panic(e);
+        } finally {
+            executor.shutdown();
+        }
+        if (error != null) {
+            Panic.panic(error);
+        }
+
+        // 日志中出现的页可能还没有写入文件
+        if (maxPgno > pc.getPageNumber()) {
+            pc.truncateByPageNo(maxPgno);
+        }
+    }
+
+    /**
+     * worker重做分配给自己的日志，出错后继续取走剩余的日志，不阻塞分发
+     */
+    private static void redo(PageCache pc, BlockingQueue<List<RedoLog>> queue) throws Exception {
+        Exception error = null;
+        while (true) {
+            List<RedoLog> batch = queue.take();
+            if (batch == END) {
+                break;
+            }
+            if (error != null) {
+                continue;
+            }
+            try {
+                redoBatch(pc, batch);
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private static void redoBatch(PageCache pc, List<RedoLog> batch) throws Exception {
+        Page page = null;
+        try {
+            for (RedoLog log : batch) {
+                // 连续修改同一页时复用已经获取的页
+                if (page == null || page.getPageNumber() != log.pgno) {
+                    if (page != null) {
+                        page.release();
+                        page = null;
+                    }
+                    page = pc.getPage(log.pgno);
+                }
+                page.lock();
+                try {
+                    if (PageX.getLSN(page) >= log.lsn) {
+                        continue;
+                    }
+                    switch (log.type) {
+                        case LOG_TYPE_INSERT:
+                            PageX.recoverInsert(page, log.raw, log.offset);
+                            break;
+                        case LOG_TYPE_UPDATE:
+                            PageX.recoverUpdate(page, log.raw, log.offset);
+                            break;
+                        case LOG_TYPE_INSERT_RLE:
+                            PageX.recoverInsert(page, ByteBuffer.wrap(log.raw), log.offset);
+                            break;
+                        default:
+                            PageX.recoverXor(page, ByteBuffer.wrap(log.raw), log.offset);
+                            break;
+                    }
+                    PageX.setLSN(page, log.lsn);
+                } finally {
+                    page.unlock();
+                }
+            }
+        } finally {
+            if (page != null) {
+                page.release();
+            }
+        }
+    }
+
+    /**
+     * 解析日志，只保留重做需要的数据
+     *
+     * @param data 日志数据
+     * @param lsn  日志LSN
+     * @return 重做日志
+     */
+    private static RedoLog parseLog(SubArray data, long lsn) {
+        RedoLog log = new RedoLog();
+        log.lsn = lsn;
+        log.type = data.get(OF_TYPE);
+        ByteBuffer raw = data.asByteBuffer();
+        int length;
+        switch (log.type) {
+            case LOG_TYPE_INSERT:
+            case LOG_TYPE_UPDATE:
+                log.pgno = data.getInt(OF_PGNO);
+                log.offset = data.getShort(OF_OFFSET);
+                raw.position(OF_RAW);
+                length = raw.remaining();
+                if (log.type == LOG_TYPE_UPDATE) {
+                    // 只重做NewRaw
+                    length /= 2;
+                    raw.position(OF_RAW + length);
+                }
+                break;
+            case LOG_TYPE_INSERT_RLE:
+            case LOG_TYPE_UPDATE_XOR:
+                raw.position(OF_XID);
+                RunLength.readVarint(raw);
+                log.pgno = (int) RunLength.readVarint(raw);
+                log.offset = (short) RunLength.readVarint(raw);
+                length = raw.remaining();
+                break;
+            default:
+                throw new IllegalStateException("unknown log type " + log.type);
+        }
+        log.raw = new byte[length];
+        raw.get(log.raw);
+        return log;
+    }
+
+    private static class RedoLog {
+
+        long lsn;
+        byte type;
+        int pgno;
+        short offset;
+        /**
+         * 需要重做的数据，新格式为编码后的数据
+         */
+        byte[] raw;
+
+    }
+
+}
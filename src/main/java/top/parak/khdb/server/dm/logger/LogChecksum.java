@@ -0,0 +1,183 @@
+package top.parak.khdb.server.dm.logger;
+
+import top.parak.khdb.common.Error;
+import top.parak.khdb.common.Panic;
+import top.parak.khdb.toolkit.Codec;
+
+import java.lang.reflect.Constructor;
+import java.util.function.Supplier;
+import java.util.zip.Checksum;
+
+/**
+ * 日志校验和算法，由日志段头部的Version选择，旧版本的日志段仍然可以打开
+ * <ol>
+ * <li>版本1：逐字节多项式哈希，CheckSum覆盖Data，XCheckSum覆盖每条日志的所有字节</li>
+ * <li>版本2：CRC32C，CheckSum覆盖Size和Data，XCheckSum只累计每条日志的CheckSum</li>
+ * </ol>
+ *
+ * @author KHighness
+ * @since 2022-07-09
+ * @email parakovo@gmail.com
+ */
+abstract class LogChecksum {
+
+    private static final int SEED = 13331;
+
+    static final LogChecksum POLYNOMIAL = new Polynomial();
+    static final LogChecksum CRC32C = new Crc32c();
+
+    /**
+     * 新建日志段使用的算法
+     */
+    static final LogChecksum CURRENT = CRC32C;
+
+    static LogChecksum of(short version) {
+        if (version == POLYNOMIAL.version()) {
+            return POLYNOMIAL;
+        }
+        if (version == CRC32C.version()) {
+            return CRC32C;
+        }
+        Panic.panic(Error.BadLogFileException);
+        return null;
+    }
+
+    abstract short version();
+
+    /**
+     * 计算一条日志的CheckSum
+     *
+     * @param log   包含日志的数组，CheckSum字段不参与计算
+     * @param start 日志在log中的起始位置
+     * @param size  日志数据的长度
+     * @return CheckSum
+     */
+    abstract int checkSum(byte[] log, int start, int size);
+
+    /**
+     * 把一条完整的日志累计到XCheckSum
+     *
+     * @param xCheck 之前的XCheckSum
+     * @param log    包含日志的数组
+     * @param start  日志在log中的起始位置
+     * @param length 日志的总长度，包含Size和CheckSum
+     * @return 新的XCheckSum
+     */
+    abstract int accumulate(int xCheck, byte[] log, int start, int length);
+
+    private static class Polynomial extends LogChecksum {
+
+        @Override
+        short version() {
+            return 1;
+        }
+
+        @Override
+        int checkSum(byte[] log, int start, int size) {
+            return hash(0, log, start + LoggerImpl.OFFSET_DATA, size);
+        }
+
+        @Override
+        int accumulate(int xCheck, byte[] log, int start, int length) {
+            return hash(xCheck, log, start, length);
+        }
+
+        private static int hash(int xCheck, byte[] buf, int from, int length) {
+            for (int i = from; i < from + length; i++) {
+                xCheck = xCheck * SEED + buf[i];
+            }
+            return xCheck;
+        }
+
+    }
+
+    /**
+     * JDK 9及以上使用有硬件加速的{@code java.util.zip.CRC32C}，否则使用查表实现
+     */
+    private static class Crc32c extends LogChecksum {
+
+        private static final Supplier<Checksum> FACTORY = factory();
+        private final ThreadLocal<Checksum> checksum = ThreadLocal.withInitial(FACTORY);
+
+        @Override
+        short version() {
+            return 2;
+        }
+
+        @Override
+        int checkSum(byte[] log, int start, int size) {
+            Checksum crc = checksum.get();
+            crc.reset();
+            crc.update(log, start + LoggerImpl.OFFSET_SIZE, 4);
+            crc.update(log, start + LoggerImpl.OFFSET_DATA, size);
+            return (int) crc.getValue();
+        }
+
+        @Override
+        int accumulate(int xCheck, byte[] log, int start, int length) {
+            return xCheck * SEED + Codec.getInt(log, start + LoggerImpl.OFFSET_CHECK_SUM);
+        }
+
+        private static Supplier<Checksum> factory() {
+            try {
+                Constructor<?> constructor = Class.forName("java.util.zip.CRC32C").getConstructor();
+                return () -> {
+                    try {
+                        return (Checksum) constructor.newInstance();
+                    } catch (ReflectiveOperationException e) {
+                        throw new IllegalStateException(e);
+                    }
+                };
+            } catch (ReflectiveOperationException e) {
+                return TableCrc32c::new;
+            }
+        }
+
+    }
+
+    /**
+     * 查表实现的CRC32C，多项式0x82F63B78
+     */
+    private static class TableCrc32c implements Checksum {
+
+        private static final int[] TABLE = new int[256];
+
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc = i;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+                }
+                TABLE[i] = crc;
+            }
+        }
+
+        private int crc = 0xFFFFFFFF;
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xff];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int c = crc;
+            for (int i = off; i < off + len; i++) {
+                c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xff];
+            }
+            crc = c;
+        }
+
+        @Override
+        public long getValue() {
+            return ~crc & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+
+    }
+
+}
@@ -0,0 +1,167 @@
+package top.parak.khdb.server.dm.logger;
+
+import top.parak.khdb.common.Panic;
+import top.parak.khdb.server.common.SubArray;
+import top.parak.khdb.toolkit.Codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.function.LongSupplier;
+
+/**
+ * 日志读取器
+ * <p>按段顺序大块读取日志到缓冲区，在缓冲区内解析和校验日志，不逐条读取文件；
+ * {@link #data()}返回缓冲区上的只读{@link SubArray}，不复制日志数据</p>
+ * <p>视图只在下一次调用{@link #next()}之前有效，遍历期间不能删除正在读取的日志段</p>
+ *
+ * @author KHighness
+ * @since 2022-07-08
+ * @email parakovo@gmail.com
+ */
+public class LogReader {
+
+    private final NavigableMap<Long, LogSegment> segments;
+    /**
+     * 最后一段可读范围末尾的LSN
+     */
+    private final LongSupplier limit;
+
+    private LogSegment segment;
+    /**
+     * 下一条日志起始位置的LSN
+     */
+    private long position;
+
+    private ByteBuffer buf;
+    /**
+     * buf的只读视图，limit始终为capacity
+     */
+    private ByteBuffer readOnly;
+    /**
+     * buf第0个字节的LSN
+     */
+    private long bufLSN;
+
+    /**
+     * 当前日志在buf中的起始位置和长度，包含Size和CheckSum
+     */
+    private int logStart;
+    private int logLength;
+
+    LogReader(NavigableMap<Long, LogSegment> segments, LongSupplier limit, int blockSize) {
+        this.segments = segments;
+        this.limit = limit;
+        this.buf = ByteBuffer.allocate(blockSize);
+        this.buf.limit(0);
+        this.readOnly = (ByteBuffer) buf.asReadOnlyBuffer().clear();
+        Map.Entry<Long, LogSegment> first = segments.firstEntry();
+        this.segment = first == null ? null : first.getValue();
+        this.position = first == null ? 0 : first.getKey();
+        this.bufLSN = position;
+    }
+
+    /**
+     * 读取下一条日志
+     *
+     * @return false代表没有更多完整的日志
+     */
+    public boolean next() {
+        while (segment != null) {
+            Long next = segments.higherKey(segment.getBaseLSN());
+            long end = next == null ? limit.getAsLong() : Math.min(next, limit.getAsLong());
+            if (position + LoggerImpl.OFFSET_DATA > end) {
+                if (position < end || next == null) {
+                    return false;
+                }
+                // 本段已经读完，进入下一段
+                segment = segments.get(next);
+                position = bufLSN = next;
+                buf.limit(0);
+                continue;
+            }
+
+            if (!fill(LoggerImpl.OFFSET_DATA, end)) {
+                return false;
+            }
+            int start = (int) (position - bufLSN);
+            int size = Codec.getInt(buf.array(), start + LoggerImpl.OFFSET_SIZE);
+            if (size < 0 || position + LoggerImpl.OFFSET_DATA + size > end) {
+                return false;
+            }
+            int length = LoggerImpl.OFFSET_DATA + size;
+            if (!fill(length, end)) {
+                return false;
+            }
+            start = (int) (position - bufLSN);
+            int checkSum = segment.getChecksum().checkSum(buf.array(), start, size);
+            if (checkSum != Codec.getInt(buf.array(), start + LoggerImpl.OFFSET_CHECK_SUM)) {
+                return false;
+            }
+
+            logStart = start;
+            logLength = length;
+            position += length;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 当前日志的数据
+     */
+    public SubArray data() {
+        return new SubArray(readOnly, logStart + LoggerImpl.OFFSET_DATA, logStart + logLength);
+    }
+
+    /**
+     * 当前日志末尾的LSN
+     */
+    public long lsn() {
+        return position;
+    }
+
+    /**
+     * 正在读取的日志段的BaseLSN
+     */
+    long segmentBase() {
+        return segment == null ? position : segment.getBaseLSN();
+    }
+
+    /**
+     * 把当前日志累计到所在段的XCheckSum
+     *
+     * @param xCheck 之前的XCheckSum
+     * @return 新的XCheckSum
+     */
+    int accumulate(int xCheck) {
+        return segment.getChecksum().accumulate(xCheck, buf.array(), logStart, logLength);
+    }
+
+    /**
+     * 保证buf中包含从position开始的length个字节，不够时从position开始重新读取一块
+     *
+     * @return false代表文件中没有足够的数据
+     */
+    private boolean fill(int length, long end) {
+        if (position - bufLSN + length <= buf.limit()) {
+            return true;
+        }
+        if (length > buf.capacity()) {
+            buf = ByteBuffer.allocate(length);
+            readOnly = (ByteBuffer) buf.asReadOnlyBuffer().clear();
+        }
+        buf.clear();
+        buf.limit((int) Math.min(buf.capacity(), end - position));
+        try {
+            segment.read(buf, position);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        buf.flip();
+        bufLSN = position;
+        return length <= buf.limit();
+    }
+
+}
@@ -0,0 +1,284 @@
+package top.parak.khdb.server.dm.logger;
+
+import top.parak.khdb.common.Error;
+import top.parak.khdb.common.Panic;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 日志段
+ * <p>段文件格式：[XCheckSum] [Version] [BaseLSN] [Log1] [Log2] ... [LogN] [BadTail]</p>
+ * <ol>
+ * <li>XCheckSum: int类型，只对本段的日志计算的校验和</li>
+ * <li>Version: short类型，段格式的版本，决定校验和算法，见{@link LogChecksum}</li>
+ * <li>BaseLSN: long类型，本段第一条日志起始位置的LSN</li>
+ * </ol>
+ * <p>段文件名为{@code path.BaseLSN.log}，段内偏移offset处的LSN为{@code BaseLSN + offset - HEADER_SIZE}</p>
+ * <p>旧版本的单文件日志{@code path.log}格式为[XCheckSum] [Log1] ... [LogN] [BadTail]，使用版本1的校验和，
+ * 打开时迁移为BaseLSN为0的版本1段：先写入临时文件并fsync，再原子改名为段文件，最后删除旧文件；
+ * 改名之后崩溃时段文件已经完整，下次打开直接删除旧文件</p>
+ *
+ * @author KHighness
+ * @since 2022-07-07
+ * @email parakovo@gmail.com
+ */
+class LogSegment {
+
+    static final int OFFSET_X_CHECK_SUM = 0;
+    static final int OFFSET_VERSION = OFFSET_X_CHECK_SUM + 4;
+    static final int OFFSET_BASE_LSN = OFFSET_VERSION + 2;
+    static final int HEADER_SIZE = OFFSET_BASE_LSN + 8;
+    private static final int NAME_DIGITS = 20;
+
+    private final File file;
+    private final long baseLSN;
+    private final RandomAccessFile raf;
+    private final FileChannel fileChannel;
+    private LogChecksum checksum;
+
+    private LogSegment(File file, long baseLSN) {
+        if (!file.canRead() || !file.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+        } catch (FileNotFoundException e) {
+            Panic.panic(e);
+        }
+        this.file = file;
+        this.baseLSN = baseLSN;
+        this.raf = raf;
+        this.fileChannel = raf.getChannel();
+    }
+
+    /**
+     * 创建一个空的日志段，返回时段头已经持久化
+     *
+     * @param path    日志路径
+     * @param baseLSN 本段第一条日志起始位置的LSN
+     * @return 日志段
+     */
+    static LogSegment create(String path, long baseLSN) {
+        File f = fileOf(path, baseLSN);
+        try {
+            if (!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        LogSegment segment = new LogSegment(f, baseLSN);
+        segment.checksum = LogChecksum.CURRENT;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(OFFSET_X_CHECK_SUM, 0);
+        header.putShort(OFFSET_VERSION, segment.checksum.version());
+        header.putLong(OFFSET_BASE_LSN, baseLSN);
+        try {
+            segment.writeAt(header, 0);
+            segment.force();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return segment;
+    }
+
+    /**
+     * 打开path的所有日志段并校验段头，存在旧版本的单文件日志时先迁移为第0段
+     *
+     * @param path 日志路径
+     * @return 按BaseLSN排序的日志段
+     */
+    static List<LogSegment> list(String path) {
+        migrateLegacy(path);
+        File prefix = new File(path).getAbsoluteFile();
+        String start = prefix.getName() + ".";
+        String[] names = prefix.getParentFile().list();
+        List<LogSegment> segments = new ArrayList<>();
+        if (names == null) {
+            return segments;
+        }
+        for (String name : names) {
+            if (!name.startsWith(start) || !name.endsWith(LoggerImpl.LOG_SUFFIX)) {
+                continue;
+            }
+            String lsn = name.substring(start.length(), name.length() - LoggerImpl.LOG_SUFFIX.length());
+            if (lsn.length() != NAME_DIGITS || !lsn.chars().allMatch(Character::isDigit)) {
+                continue;
+            }
+            LogSegment segment = new LogSegment(new File(prefix.getParentFile(), name), Long.parseLong(lsn));
+            segment.checkHeader();
+            segments.add(segment);
+        }
+        segments.sort(Comparator.comparingLong(LogSegment::getBaseLSN));
+        return segments;
+    }
+
+    /**
+     * 把旧版本的单文件日志迁移为BaseLSN为0的版本1段，XCheckSum和日志原样复制
+     *
+     * @param path 日志路径
+     */
+    private static void migrateLegacy(String path) {
+        File legacy = new File(path + LoggerImpl.LOG_SUFFIX);
+        if (!legacy.exists()) {
+            return;
+        }
+        File target = fileOf(path, 0);
+        try {
+            if (!target.exists()) {
+                File tmp = new File(target.getPath() + ".tmp");
+                try (FileChannel src = FileChannel.open(legacy.toPath(), StandardOpenOption.READ);
+                     FileChannel dst = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                             StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    ByteBuffer xCheckSum = ByteBuffer.allocate(4);
+                    readFully(src, xCheckSum, 0);
+                    if (xCheckSum.hasRemaining()) {
+                        Panic.panic(Error.BadLogFileException);
+                    }
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(OFFSET_X_CHECK_SUM, xCheckSum.getInt(0));
+                    header.putShort(OFFSET_VERSION, LogChecksum.POLYNOMIAL.version());
+                    header.putLong(OFFSET_BASE_LSN, 0);
+                    while (header.hasRemaining()) {
+                        dst.write(header);
+                    }
+                    long position = 4;
+                    long size = src.size();
+                    while (position < size) {
+                        position += src.transferTo(position, size - position, dst);
+                    }
+                    dst.force(true);
+                }
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.delete(legacy.toPath());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private static File fileOf(String path, long baseLSN) {
+        return new File(String.format("%s.%0" + NAME_DIGITS + "d%s", path, baseLSN, LoggerImpl.LOG_SUFFIX));
+    }
+
+    private void checkHeader() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try {
+            readAt(header, 0);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if (header.hasRemaining() || header.getLong(OFFSET_BASE_LSN) != baseLSN) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        checksum = LogChecksum.of(header.getShort(OFFSET_VERSION));
+    }
+
+    long getBaseLSN() {
+        return baseLSN;
+    }
+
+    LogChecksum getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * 文件末尾的LSN
+     */
+    long getEndLSN() throws IOException {
+        return baseLSN + fileChannel.size() - HEADER_SIZE;
+    }
+
+    int readXCheckSum() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        readAt(buf, OFFSET_X_CHECK_SUM);
+        return buf.getInt(0);
+    }
+
+    void writeXCheckSum(int xCheckSum) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        buf.putInt(0, xCheckSum);
+        writeAt(buf, OFFSET_X_CHECK_SUM);
+    }
+
+    /**
+     * 从lsn处读满dst，文件末尾之后的部分不读取
+     */
+    void read(ByteBuffer dst, long lsn) throws IOException {
+        readAt(dst, offsetOf(lsn));
+    }
+
+    void write(ByteBuffer src, long lsn) throws IOException {
+        writeAt(src, offsetOf(lsn));
+    }
+
+    /**
+     * 截断lsn之后的日志
+     */
+    void truncate(long lsn) throws IOException {
+        fileChannel.truncate(offsetOf(lsn));
+    }
+
+    void force() throws IOException {
+        fileChannel.force(false);
+    }
+
+    void close() {
+        try {
+            raf.close();
+            fileChannel.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 关闭并删除段文件
+     */
+    void delete() {
+        close();
+        try {
+            Files.delete(file.toPath());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private long offsetOf(long lsn) {
+        return lsn - baseLSN + HEADER_SIZE;
+    }
+
+    private void readAt(ByteBuffer dst, long offset) throws IOException {
+        readFully(fileChannel, dst, offset);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long offset) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, offset);
+            if (n < 0) {
+                break;
+            }
+            offset += n;
+        }
+    }
+
+    private void writeAt(ByteBuffer src, long offset) throws IOException {
+        while (src.hasRemaining()) {
+            offset += fileChannel.write(src, offset);
+        }
+    }
+
+}
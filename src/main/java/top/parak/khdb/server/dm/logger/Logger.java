@@ -1,5 +1,10 @@
 package top.parak.khdb.server.dm.logger;
 
+import top.parak.khdb.common.Error;
+import top.parak.khdb.common.Panic;
+
+import java.util.List;
+
 /**
  * 日志
  *
@@ -9,14 +14,103 @@ package top.parak.khdb.server.dm.logger;
  */
 public interface Logger {
 
-    void log(byte[] data);
+    /**
+     * 写入一条日志，返回时日志已经持久化
+     *
+     * @param data 日志数据
+     * @return 日志的LSN
+     */
+    long log(byte[] data);
+
+    /**
+     * 追加一条日志，不等待持久化
+     * <p>LSN是日志末尾的逻辑位置，单调递增；
+     * 需要持久化时调用{@link #flushUpTo(long)}；
+     * 待写的日志达到{@link LoggerOptions#maxBatchSize}时先提交一批，此时会等待fsync</p>
+     *
+     * @param data 日志数据
+     * @return 日志的LSN
+     */
+    long append(byte[] data);
+
+    /**
+     * 保证LSN不超过lsn的日志都已经持久化
+     *
+     * @param lsn LSN
+     */
+    void flushUpTo(long lsn);
+
+    /**
+     * 获取已经持久化的日志末尾的LSN
+     */
+    long getFlushedLSN();
+
+    /**
+     * 获取统计的快照，不阻塞追加
+     *
+     * @return 快照
+     */
+    LoggerStats getStats();
 
+    /**
+     * 截断LSN x之后的日志，还没有持久化的日志一并丢弃
+     *
+     * @param x LSN
+     */
     void truncate(long x) throws Exception;
 
+    /**
+     * 删除所有日志LSN都小于lsn的整段日志，正在追加的段不会被删除
+     * <p>调用方需要保证LSN小于lsn的日志对应的修改都已经写回，LSN等于lsn的日志会保留；
+     * 不影响{@link #next()}的游标，游标所在及之后的段不会被删除</p>
+     *
+     * @param lsn 检查点的LSN
+     */
+    void truncateBefore(long lsn);
+
+    /**
+     * 从游标处读取下一条已持久化的日志，第一次调用或{@link #rewind()}之后从头开始
+     *
+     * @return 日志数据，null代表没有更多日志
+     */
     byte[] next();
 
+    /**
+     * 创建一个从头遍历已持久化日志的读取器，与{@link #next()}的游标互不影响
+     */
+    LogReader reader();
+
     void rewind();
 
+    /**
+     * 持久化所有已追加的日志之后关闭
+     */
     void close();
 
+    public static Logger create(String path) {
+        return create(path, new LoggerOptions());
+    }
+
+    public static Logger create(String path, LoggerOptions options) {
+        if (!LogSegment.list(path).isEmpty()) {
+            Panic.panic(Error.FileExistsException);
+        }
+        LogSegment.create(path, 0).close();
+        return open(path, options);
+    }
+
+    public static Logger open(String path) {
+        return open(path, new LoggerOptions());
+    }
+
+    public static Logger open(String path, LoggerOptions options) {
+        List<LogSegment> segments = LogSegment.list(path);
+        if (segments.isEmpty()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        LoggerImpl logger = new LoggerImpl(path, segments, options);
+        logger.init();
+        return logger;
+    }
+
 }
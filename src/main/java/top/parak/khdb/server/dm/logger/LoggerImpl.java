@@ -1,33 +1,35 @@
 package top.parak.khdb.server.dm.logger;
 
-import com.google.common.primitives.Bytes;
 import top.parak.khdb.common.Error;
 import top.parak.khdb.common.Panic;
-import top.parak.khdb.toolkit.Parser;
+import top.parak.khdb.server.common.LatencyHistogram;
+import top.parak.khdb.server.common.MBeans;
+import top.parak.khdb.toolkit.Codec;
 
+import javax.management.ObjectName;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * <p>日志文件格式: [XCheckSum] [Log1] [Log2] ... [LogN] [BadTail]</p>
- * <ol>
- * <li>XCheckSum: int类型，对后续所有日志计算的校验和</li>
- * <li>BadTail: 在数据库崩溃时，没有来得及写完的日志数据，不一定存在</li>
- * </ol>
+ * <p>日志由若干个日志段组成，见{@link LogSegment}</p>
  * <p>
  * 每条日志格式：[Size] [CheckSum] [Data]
  * </p>
  *
  * <pre>
- * +----------------+
- * |     4 byte     |
- * +----------------+
- * |    XCheckSum   |
+ * +----------------+----------------+----------------+
+ * |     4 byte     |     2 byte     |     8 byte     |
+ * +----------------+----------------+----------------+
+ * |    XCheckSum   |     Version    |     BaseLSN    |
  * +----------------+----------------+----------------+
  * |     4 byte     |     4 byte     |     4 byte     |
  * +----------------+----------------+----------------+
@@ -42,6 +44,32 @@ import java.util.concurrent.locks.ReentrantLock;
  * |     BadTail    |
  * +----------------+
  * </pre>
+ * <p>所有读写都按位置进行，不修改channel的position：
+ * 追加日志需要按顺序累计XCheckSum，由{@code lock}串行；
+ * 遍历日志由{@link LogReader}大块读取并在缓冲区内解析，只由{@code cursorLock}保护游标，不阻塞追加</p>
+ * <p><b>组提交</b></p>
+ * <ol>
+ * <li>并发的log调用把日志追加到共享的待写队列，并按顺序累计XCheckSum</li>
+ * <li>没有正在进行的提交时，调用者成为leader，最多等待{@code maxWaitMicros}微秒收集更多日志</li>
+ * <li>leader一次写入最多{@code maxBatchSize}字节，只更新一次XCheckSum，只fsync一次</li>
+ * <li>每个调用者在自己的日志持久化之后才返回</li>
+ * <li>待写队列达到{@code maxBatchSize}字节时，{@link #append}的调用者先提交一批再返回，
+ * 只追加不持久化的调用者不会让待写队列无限增长</li>
+ * </ol>
+ * <p><b>LSN</b></p>
+ * <p>日志的LSN是它的末尾在整个日志中的逻辑位置，跨日志段单调递增；
+ * {@link #append}只追加到待写队列，{@link #flushUpTo}按LSN等待组提交，
+ * 页缓存写回页之前通过它保证先写日志</p>
+ * <p><b>日志段</b></p>
+ * <ol>
+ * <li>当前段超过{@code segmentSize}时，后续日志写入新的段，一批提交不跨段</li>
+ * <li>校验和算法由段头的Version决定，新日志只写入当前版本的段，旧版本的段只读</li>
+ * <li>新段在前一段全部持久化之后才创建，因此只有最后一段可能有BadTail，启动时只校验最后一段</li>
+ * <li>检查点之后，{@link #truncateBefore}删除已经不再需要的整段</li>
+ * </ol>
+ * <p><b>统计</b></p>
+ * <p>{@link #getStats()}返回追加和持久化的字节数、组提交批数和fsync延迟的快照，
+ * 打开时以{@link LoggerMXBean}注册到JMX</p>
  *
  * @author KHighness
  * @since 2022-06-29
@@ -49,197 +77,420 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class LoggerImpl implements Logger {
 
-    private static final int SEED = 13331;
-    private static final int OFFSET_SIZE = 0;
-    private static final int OFFSET_CHECK_SUM = OFFSET_SIZE + 4;
-    private static final int OFFSET_DATA= OFFSET_CHECK_SUM + 4;
+    static final int OFFSET_SIZE = 0;
+    static final int OFFSET_CHECK_SUM = OFFSET_SIZE + 4;
+    static final int OFFSET_DATA= OFFSET_CHECK_SUM + 4;
     public static final String LOG_SUFFIX = ".log";
 
-    private RandomAccessFile file;
-    private FileChannel fileChannel;
+    private String path;
+    /**
+     * BaseLSN -> 已经创建的日志段
+     */
+    private ConcurrentSkipListMap<Long, LogSegment> segments;
+    private long segmentSize;
     private Lock lock;
+    private Lock cursorLock;
+    private Condition batchFull;
+    private Condition committed;
+    private int maxBatchSize;
+    private long maxWaitNanos;
+    private int readBlockSize;
 
-    private long position;
-    private long fileSize;
+    /**
+     * {@link #next()}使用的游标，null代表还没有开始遍历
+     */
+    private LogReader cursor;
+    /**
+     * 正在追加的日志段的BaseLSN，这个段可能还没有创建
+     */
+    private long tailBase;
+    /**
+     * 正在追加的日志段的XCheckSum
+     */
     private int xCheckSum;
+    /**
+     * 正在追加的日志段是旧版本，下一条日志写入新的段
+     */
+    private boolean sealed;
 
-    LoggerImpl(RandomAccessFile file, FileChannel fileChannel) {
-        this.file = file;
-        this.fileChannel = fileChannel;
-        this.lock = new ReentrantLock();
-    }
+    /**
+     * 等待写入的日志
+     */
+    private ArrayDeque<PendingLog> pending;
+    private int pendingSize;
+    /**
+     * 已追加的日志末尾的LSN
+     */
+    private long appended;
+    /**
+     * 已持久化的日志末尾的LSN，只在{@code lock}内修改
+     */
+    private volatile long durable;
+    /**
+     * 是否有leader正在提交
+     */
+    private boolean committing;
+
+    private LongAdder appendedRecords;
+    private LongAdder appendedBytes;
+    private LongAdder flushedBytes;
+    private LongAdder commits;
+    private LatencyHistogram fsyncLatency;
+    private ObjectName mbeanName;
 
-    LoggerImpl(RandomAccessFile file, FileChannel fileChannel, int xCheckSum) {
-        this.file = file;
-        this.fileChannel = fileChannel;
+    LoggerImpl(String path, List<LogSegment> segments, LoggerOptions options) {
+        this.path = path;
+        this.segments = new ConcurrentSkipListMap<>();
+        for (LogSegment segment : segments) {
+            this.segments.put(segment.getBaseLSN(), segment);
+        }
+        this.segmentSize = options.segmentSize;
         this.lock = new ReentrantLock();
-        this.xCheckSum = xCheckSum;
+        this.cursorLock = new ReentrantLock();
+        this.batchFull = lock.newCondition();
+        this.committed = lock.newCondition();
+        this.maxBatchSize = options.maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(options.maxWaitMicros);
+        this.readBlockSize = options.readBlockSize;
+        this.pending = new ArrayDeque<>();
+        this.appendedRecords = new LongAdder();
+        this.appendedBytes = new LongAdder();
+        this.flushedBytes = new LongAdder();
+        this.commits = new LongAdder();
+        this.fsyncLatency = new LatencyHistogram();
     }
 
     void init() {
-        long size = 0;
+        // 新段在前一段持久化之后才创建，之前的段一定是完整的
+        LogSegment prev = null;
         try {
-            size = file.length();
+            for (LogSegment segment : segments.values()) {
+                if (prev != null && prev.getEndLSN() < segment.getBaseLSN()) {
+                    Panic.panic(Error.BadLogFileException);
+                }
+                prev = segment;
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-        if (size < 4) {
-            Panic.panic(Error.BadLogFileException);
+        checkAndRemoveTail();
+        mbeanName = MBeans.register("Logger", path + LOG_SUFFIX, new LoggerMonitor(this));
+    }
+
+    @Override
+    public long log(byte[] data) {
+        long lsn = append(data);
+        flushUpTo(lsn);
+        return lsn;
+    }
+
+    @Override
+    public long append(byte[] data) {
+        byte[] log = wrapLog(data);
+        lock.lock();
+        try {
+            if (sealed || (appended > tailBase && appended - tailBase + log.length > segmentSize)) {
+                // 切换到新段，由leader在前一段持久化之后创建
+                tailBase = appended;
+                xCheckSum = 0;
+                sealed = false;
+            }
+            xCheckSum = LogChecksum.CURRENT.accumulate(xCheckSum, log, 0, log.length);
+            appended += log.length;
+            pending.addLast(new PendingLog(log, tailBase, appended, xCheckSum));
+            pendingSize += log.length;
+            appendedRecords.increment();
+            appendedBytes.add(log.length);
+            long lsn = appended;
+            if (pendingSize >= maxBatchSize) {
+                batchFull.signal();
+                // 背压：待写队列攒满一批时先提交，等待期间其他追加者也会被阻塞在这里
+                while (pendingSize >= maxBatchSize && !pending.isEmpty()) {
+                    if (committing) {
+                        committed.awaitUninterruptibly();
+                    } else {
+                        commit();
+                    }
+                }
+            }
+            return lsn;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        ByteBuffer raw = ByteBuffer.allocate(4);
+    @Override
+    public void flushUpTo(long lsn) {
+        lock.lock();
         try {
-            fileChannel.position(0);
-            fileChannel.read(raw);
-        } catch (IOException e) {
-            Panic.panic(e);
+            long end = Math.min(lsn, appended);
+            while (durable < end) {
+                if (committing) {
+                    committed.awaitUninterruptibly();
+                } else {
+                    commit();
+                }
+            }
+        } finally {
+            lock.unlock();
         }
-        int xCheckSum = Parser.parseInt(raw.array());
+    }
 
-        this.fileSize = size;
-        this.xCheckSum = xCheckSum;
-        checkAndRemoveTail();
+    @Override
+    public long getFlushedLSN() {
+        return durable;
     }
 
     @Override
-    public void log(byte[] data) {
-        byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+    public LoggerStats getStats() {
+        return new LoggerStats(appendedRecords.sum(), appendedBytes.sum(), flushedBytes.sum(), commits.sum(),
+                durable, segments.size(), fsyncLatency.snapshot());
+    }
+
+    @Override
+    public void truncate(long x) throws Exception {
+        cursorLock.lock();
         lock.lock();
         try {
-            fileChannel.position(fileChannel.size());
-            fileChannel.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            // 等待正在写入的一批完成，未持久化的日志都在durable之后，一并丢弃
+            while (committing) {
+                committed.awaitUninterruptibly();
+            }
+            pending.clear();
+            pendingSize = 0;
+            x = Math.max(segments.firstKey(), Math.min(x, durable));
+            LogSegment segment = segments.floorEntry(x).getValue();
+            for (LogSegment later : segments.tailMap(segment.getBaseLSN(), false).values()) {
+                segments.remove(later.getBaseLSN());
+                later.delete();
+            }
+
+            // 重新计算截断后本段的XCheckSum
+            final long end = x;
+            LogReader reader = new LogReader(segments.tailMap(segment.getBaseLSN(), true), () -> end, readBlockSize);
+            int xCheck = 0;
+            while (reader.next()) {
+                xCheck = reader.accumulate(xCheck);
+            }
+            long lsn = reader.lsn();
+            segment.truncate(lsn);
+            segment.writeXCheckSum(xCheck);
+            segment.force();
+
+            setTail(segment, xCheck, lsn);
+            rewind();
         } finally {
             lock.unlock();
+            cursorLock.unlock();
         }
-        updateXCheckSum(log);
     }
 
     @Override
-    public void truncate(long x) throws Exception {
+    public void truncateBefore(long lsn) {
+        cursorLock.lock();
         lock.lock();
         try {
-            fileChannel.truncate(x);
+            // 游标正在读取的段及之后的段保留，不重置游标
+            long keep = cursor == null ? Long.MAX_VALUE : cursor.segmentBase();
+            while (true) {
+                Map.Entry<Long, LogSegment> first = segments.firstEntry();
+                Long next = segments.higherKey(first.getKey());
+                if (next == null || next >= lsn || first.getKey() >= keep) {
+                    break;
+                }
+                segments.remove(first.getKey());
+                first.getValue().delete();
+            }
         } finally {
             lock.unlock();
+            cursorLock.unlock();
         }
     }
 
     @Override
     public byte[] next() {
-        lock.lock();
+        cursorLock.lock();
         try {
-            byte[] log = internNext();
-            if (log == null) {
+            if (cursor == null) {
+                cursor = reader();
+            }
+            if (!cursor.next()) {
                 return null;
             }
-            return Arrays.copyOfRange(log, OFFSET_DATA, log.length);
+            return cursor.data().toArray();
         } finally {
-            lock.unlock();
+            cursorLock.unlock();
         }
     }
 
     @Override
     public void rewind() {
-        position = 4;
+        cursorLock.lock();
+        try {
+            cursor = null;
+        } finally {
+            cursorLock.unlock();
+        }
+    }
+
+    @Override
+    public LogReader reader() {
+        return new LogReader(segments, this::getFlushedLSN, readBlockSize);
     }
 
     @Override
     public void close() {
-        try {
-            file.close();
-            fileChannel.close();
-        } catch (IOException e) {
-            Panic.panic(e);
+        // 持久化已追加但还没有提交的日志
+        flushUpTo(Long.MAX_VALUE);
+        MBeans.unregister(mbeanName);
+        for (LogSegment segment : segments.values()) {
+            segment.close();
         }
     }
 
+    /**
+     * 校验最后一段并截断BadTail
+     */
     private void checkAndRemoveTail() {
-        rewind();
-
+        LogSegment last = segments.lastEntry().getValue();
         int xCheck = 0;
-        while (true) {
-            byte[] log = internNext();
-            if (log == null) {
-                break;
-            }
-            xCheck = calCheckSum(xCheck, log);
-        }
-        if (xCheck != xCheckSum) {
-            Panic.panic(Error.BadLogFileException);
-        }
-
+        long lsn = last.getBaseLSN();
         try {
-            truncate(position);
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        try {
-            file.seek(position);
+            long end = last.getEndLSN();
+            LogReader reader = new LogReader(segments.tailMap(last.getBaseLSN(), true), () -> end, readBlockSize);
+            while (reader.next()) {
+                xCheck = reader.accumulate(xCheck);
+            }
+            lsn = reader.lsn();
+            if (xCheck != last.readXCheckSum()) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            last.truncate(lsn);
+            setTail(last, xCheck, lsn);
         } catch (IOException e) {
             Panic.panic(e);
         }
         rewind();
     }
 
-    private byte[] internNext() {
-        if (position + OFFSET_DATA >= fileSize) {
-            return null;
-        }
-        ByteBuffer tmp = ByteBuffer.allocate(4);
-        try {
-            fileChannel.position(position);
-            fileChannel.read(tmp);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        int size = Parser.parseInt(tmp.array());
-        if (position + size + OFFSET_DATA > fileSize) {
-            return null;
-        }
-
-        ByteBuffer buf = ByteBuffer.allocate(OFFSET_DATA + size);
-        try {
-            fileChannel.position(position);
-            fileChannel.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+    /**
+     * 从lsn处继续向segment追加，旧版本的段不再追加
+     *
+     * @param segment 最后一段
+     * @param xCheck  segment截止到lsn的XCheckSum
+     * @param lsn     segment末尾的LSN
+     */
+    private void setTail(LogSegment segment, int xCheck, long lsn) throws IOException {
+        if (segment.getChecksum() != LogChecksum.CURRENT && lsn == segment.getBaseLSN()) {
+            // 空的旧版本段直接换成当前版本
+            segments.remove(lsn);
+            segment.delete();
+            segment = LogSegment.create(path, lsn);
+            segments.put(lsn, segment);
         }
+        tailBase = segment.getBaseLSN();
+        xCheckSum = xCheck;
+        sealed = segment.getChecksum() != LogChecksum.CURRENT;
+        appended = durable = lsn;
+    }
 
-        byte[] log = buf.array();
-        int calCheckSum = calCheckSum(0, Arrays.copyOfRange(log, OFFSET_DATA, log.length));
-        int fileCheckSum = Parser.parseInt(Arrays.copyOfRange(log, OFFSET_CHECK_SUM, OFFSET_DATA));
-        if (calCheckSum != fileCheckSum) {
-            return null;
-        }
-        position += log.length;
+    private byte[] wrapLog(byte[] data) {
+        byte[] log = new byte[OFFSET_DATA + data.length];
+        Codec.putInt(log, OFFSET_SIZE, data.length);
+        System.arraycopy(data, 0, log, OFFSET_DATA, data.length);
+        Codec.putInt(log, OFFSET_CHECK_SUM, LogChecksum.CURRENT.checkSum(log, 0, data.length));
         return log;
     }
 
-    private int calCheckSum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
+    /**
+     * 作为leader提交一批日志，调用时持有{@code lock}，写入期间释放
+     */
+    private void commit() {
+        committing = true;
+        boolean interrupted = false;
+        try {
+            if (maxWaitNanos > 0 && pendingSize < maxBatchSize) {
+                try {
+                    batchFull.awaitNanos(maxWaitNanos);
+                } catch (InterruptedException e) {
+                    // 带着中断标记读写会关闭FileChannel，提交完成后再恢复
+                    interrupted = true;
+                }
+            }
+
+            long start = durable;
+            long base = pending.peekFirst().segmentBase;
+            int size = 0;
+            int count = 0;
+            for (PendingLog log : pending) {
+                if (log.segmentBase != base || (count > 0 && size + log.log.length > maxBatchSize)) {
+                    break;
+                }
+                size += log.log.length;
+                count++;
+            }
+            ByteBuffer batch = ByteBuffer.allocate(size);
+            PendingLog last = null;
+            for (int i = 0; i < count; i++) {
+                last = pending.pollFirst();
+                batch.put(last.log);
+            }
+            batch.flip();
+            pendingSize -= size;
+
+            lock.unlock();
+            try {
+                LogSegment segment = segments.get(base);
+                if (segment == null) {
+                    // 前一段已经全部持久化，创建新段
+                    segment = LogSegment.create(path, base);
+                    segments.put(base, segment);
+                }
+                segment.write(batch, start);
+                segment.writeXCheckSum(last.xCheckSum);
+                long fsyncStart = System.nanoTime();
+                segment.force();
+                fsyncLatency.recordSince(fsyncStart);
+            } catch (IOException e) {
+                Panic.panic(e);
+            } finally {
+                lock.lock();
+            }
+            durable = last.end;
+            commits.increment();
+            flushedBytes.add(size);
+        } finally {
+            committing = false;
+            committed.signalAll();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
-        return xCheck;
     }
 
-    private byte[] wrapLog(byte[] data) {
-        byte[] checkSum = Parser.int2Byte(calCheckSum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checkSum, data);
-    }
+    private static class PendingLog {
 
-    private void updateXCheckSum(byte[] log) {
-        this.xCheckSum = calCheckSum(this.xCheckSum, log);
-        try {
-            fileChannel.position(0);
-            fileChannel.write(ByteBuffer.wrap(Parser.int2Byte(xCheckSum)));
-            fileChannel.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+        final byte[] log;
+        /**
+         * 所在日志段的BaseLSN
+         */
+        final long segmentBase;
+        /**
+         * 日志末尾的LSN
+         */
+        final long end;
+        /**
+         * 包含这条日志在内的本段XCheckSum
+         */
+        final int xCheckSum;
+
+        PendingLog(byte[] log, long segmentBase, long end, int xCheckSum) {
+            this.log = log;
+            this.segmentBase = segmentBase;
+            this.end = end;
+            this.xCheckSum = xCheckSum;
         }
+
     }
 
 }
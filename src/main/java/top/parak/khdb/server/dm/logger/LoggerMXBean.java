@@ -0,0 +1,30 @@
+package top.parak.khdb.server.dm.logger;
+
+/**
+ * 日志的JMX视图，每次读取属性时从{@link Logger#getStats()}获取，延迟单位为微秒
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+public interface LoggerMXBean {
+
+    long getAppendedRecords();
+
+    long getAppendedBytes();
+
+    long getFlushedBytes();
+
+    long getCommits();
+
+    long getFlushedLSN();
+
+    int getSegments();
+
+    long getFsyncCount();
+
+    double getFsyncLatencyMeanMicros();
+
+    long getFsyncLatencyP99Micros();
+
+}
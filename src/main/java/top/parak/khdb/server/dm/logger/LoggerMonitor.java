@@ -0,0 +1,65 @@
+package top.parak.khdb.server.dm.logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 注册到JMX的{@link LoggerMXBean}实现
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+class LoggerMonitor implements LoggerMXBean {
+
+    private final Logger logger;
+
+    LoggerMonitor(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public long getAppendedRecords() {
+        return logger.getStats().getAppendedRecords();
+    }
+
+    @Override
+    public long getAppendedBytes() {
+        return logger.getStats().getAppendedBytes();
+    }
+
+    @Override
+    public long getFlushedBytes() {
+        return logger.getStats().getFlushedBytes();
+    }
+
+    @Override
+    public long getCommits() {
+        return logger.getStats().getCommits();
+    }
+
+    @Override
+    public long getFlushedLSN() {
+        return logger.getStats().getFlushedLSN();
+    }
+
+    @Override
+    public int getSegments() {
+        return logger.getStats().getSegments();
+    }
+
+    @Override
+    public long getFsyncCount() {
+        return logger.getStats().getFsyncLatency().getCount();
+    }
+
+    @Override
+    public double getFsyncLatencyMeanMicros() {
+        return logger.getStats().getFsyncLatency().getMeanNanos() / 1000;
+    }
+
+    @Override
+    public long getFsyncLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(logger.getStats().getFsyncLatency().getQuantileNanos(0.99));
+    }
+
+}
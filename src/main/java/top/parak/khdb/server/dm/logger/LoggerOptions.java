@@ -0,0 +1,33 @@
+package top.parak.khdb.server.dm.logger;
+
+/**
+ * Logger 打开选项
+ *
+ * @author KHighness
+ * @since 2022-07-06
+ * @email parakovo@gmail.com
+ */
+public class LoggerOptions {
+
+    /**
+     * 一次组提交最多写入的字节数，单条日志超过时单独提交；
+     * 也是待写日志的上限，达到时{@link Logger#append}的调用者先提交一批
+     */
+    public int maxBatchSize = 1 << 20;
+
+    /**
+     * 组提交的leader等待更多日志加入的最长时间，单位微秒，0代表不等待
+     */
+    public long maxWaitMicros = 0;
+
+    /**
+     * 日志段的大小，超过后写入新的段，单条日志超过时单独占用一段
+     */
+    public long segmentSize = 64L << 20;
+
+    /**
+     * 读取日志时每次从文件读取的字节数
+     */
+    public int readBlockSize = 1 << 20;
+
+}
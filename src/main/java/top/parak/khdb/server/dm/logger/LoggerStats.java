@@ -0,0 +1,67 @@
+package top.parak.khdb.server.dm.logger;
+
+import top.parak.khdb.server.common.LatencyHistogram;
+
+/**
+ * 日志统计的快照，计数从打开时开始累计，比较两次快照可以得到每秒的日志字节数
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+public class LoggerStats {
+
+    private final long appendedRecords;
+    private final long appendedBytes;
+    private final long flushedBytes;
+    private final long commits;
+    private final long flushedLSN;
+    private final int segments;
+    private final LatencyHistogram.Snapshot fsyncLatency;
+
+    LoggerStats(long appendedRecords, long appendedBytes, long flushedBytes, long commits,
+                long flushedLSN, int segments, LatencyHistogram.Snapshot fsyncLatency) {
+        this.appendedRecords = appendedRecords;
+        this.appendedBytes = appendedBytes;
+        this.flushedBytes = flushedBytes;
+        this.commits = commits;
+        this.flushedLSN = flushedLSN;
+        this.segments = segments;
+        this.fsyncLatency = fsyncLatency;
+    }
+
+    public long getAppendedRecords() {
+        return appendedRecords;
+    }
+
+    /**
+     * 追加的日志字节数，包括Size和CheckSum
+     */
+    public long getAppendedBytes() {
+        return appendedBytes;
+    }
+
+    public long getFlushedBytes() {
+        return flushedBytes;
+    }
+
+    /**
+     * 组提交的批数，每批fsync一次
+     */
+    public long getCommits() {
+        return commits;
+    }
+
+    public long getFlushedLSN() {
+        return flushedLSN;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    public LatencyHistogram.Snapshot getFsyncLatency() {
+        return fsyncLatency;
+    }
+
+}
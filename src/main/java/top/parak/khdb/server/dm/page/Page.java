@@ -1,5 +1,10 @@
 package top.parak.khdb.server.dm.page;
 
+import top.parak.khdb.server.common.SubArray;
+
+import java.nio.ByteBuffer;
+import java.util.function.ToLongFunction;
+
 /**
  * @author KHighness
  * @since 2022-06-28
@@ -7,18 +12,100 @@ package top.parak.khdb.server.dm.page;
  */
 public interface Page {
 
+    /**
+     * 获取排他锁，修改页之前调用，可重入
+     * <p>持有排他锁的线程可以再次获取排他锁或共享锁，释放次数与获取次数相同；
+     * 只持有共享锁时不能升级为排他锁</p>
+     * <p>持有页锁时不能调用{@link top.parak.khdb.server.dm.pagecache.PageCache#flushPages}
+     * 和{@link top.parak.khdb.server.dm.pagecache.PageCache#checkpoint}，写回需要获取页的共享锁</p>
+     */
     void lock();
 
     void unlock();
 
+    /**
+     * 判断当前线程是否持有排他锁
+     *
+     * @return true代表持有排他锁
+     */
+    boolean isLockedByCurrentThread();
+
+    /**
+     * 获取共享锁，多个读者可以同时持有，与排他锁互斥；持有排他锁的线程可以直接获取
+     */
+    void lockShared();
+
+    void unlockShared();
+
+    /**
+     * 开始一次乐观读，不加锁
+     *
+     * @return 版本戳，0代表有线程持有排他锁
+     */
+    long tryOptimisticRead();
+
+    /**
+     * 校验乐观读期间没有线程获取过排他锁，校验通过之前读到的数据可能不一致
+     *
+     * @param stamp {@link #tryOptimisticRead()}返回的版本戳
+     * @return true代表读到的数据一致
+     */
+    boolean validate(long stamp);
+
+    /**
+     * 不持有页锁时读取页，先乐观读，校验失败时在共享锁内重读；
+     * 乐观读期间reader可能看到不一致的数据，抛出的异常在校验失败时被忽略
+     *
+     * @param reader 读取页的函数，不能修改页，也不能获取页锁；当前线程持有排他锁时直接读取
+     * @return reader的结果
+     */
+    long read(ToLongFunction<Page> reader);
+
     void release();
 
+    /**
+     * 设置脏标记，用于不记日志的修改，页从干净变脏时以已持久化的LSN作为recLSN
+     * <p>记日志的修改不调用这个方法，而是在修改之后调用{@link #setLSN}，由它标记脏页</p>
+     * <p>写回在共享锁内复制页并清除脏标记，只有所有修改都持有排他锁时才不会丢失修改，
+     * 所以setDirty(true)在排他锁内进行，调用方没有持有时临时获取</p>
+     */
     void setDirty(boolean dirty);
 
     boolean isDirty();
 
     int getPageNumber();
 
+    /**
+     * 获取堆内存页的数据，堆外页不支持
+     */
     byte[] getData();
 
+    /**
+     * 获取页数据，堆内和堆外页都支持，只能使用绝对位置读写
+     */
+    ByteBuffer getBuffer();
+
+    /**
+     * 获取页中{@code [start, end)}的视图，直接引用缓存中的页帧，不复制数据
+     */
+    SubArray getSubArray(int start, int end);
+
+    /**
+     * 获取最近一次修改这一页的日志LSN，页写回之前日志必须持久化到这个位置
+     */
+    long getLSN();
+
+    /**
+     * 记录修改这一页的日志LSN并标记脏页，在排他锁内进行，调用方没有持有时临时获取
+     * <p>修改页的顺序：持有排他锁，追加日志得到LSN，修改页，setLSN(LSN)，释放排他锁；
+     * 页从干净变脏时以这条日志的LSN作为recLSN，已经是脏页时recLSN取两者的较小值，
+     * 检查点在共享锁内读取recLSN，不会删除这条日志所在的段</p>
+     */
+    void setLSN(long lsn);
+
+    /**
+     * 获取recLSN，页中还没有写回的修改对应的日志LSN都不小于它，只在页是脏页时有意义
+     */
+    long getRecLSN();
+
 }
@@ -1,39 +1,159 @@
 package top.parak.khdb.server.dm.page;
 
+import top.parak.khdb.server.common.SubArray;
 import top.parak.khdb.server.dm.pagecache.PageCache;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.ToLongFunction;
 
 /**
+ * <p>页锁基于{@link StampedLock}：修改使用排他锁，读取使用共享锁或乐观读，
+ * 热点页上的读者之间互不阻塞，乐观读不写共享的锁状态</p>
+ * <p>StampedLock不可重入，也不记录持有者：这里记录排他锁的持有线程和重入次数，
+ * 与原来的{@code ReentrantLock}一样，持有排他锁的线程可以再次获取排他锁或共享锁；
+ * 每个线程持有的页锁数量用于拒绝持有页锁时写回，写回需要获取页的共享锁</p>
+ *
  * @author KHighness
  * @since 2022-06-28
  * @email parakovo@gmail.com
  */
 public class PageImpl implements Page {
 
+    /**
+     * 当前线程持有的排他锁和共享锁的数量
+     */
+    private static final ThreadLocal<int[]> LATCHES = ThreadLocal.withInitial(() -> new int[1]);
+
     private final int pageNumber;
-    private final byte[] data;
-    private final Lock lock;
+    private final ByteBuffer buffer;
+    private final StampedLock latch;
+    private final Lock exclusive;
+    private final Lock shared;
     private final PageCache pageCache;
 
-    private boolean dirty;
+    private volatile Thread owner;
+    /**
+     * 排他锁的重入次数，只由持有者访问
+     */
+    private int holds;
+    /**
+     * 持有排他锁期间获取的共享锁次数，只由持有者访问
+     */
+    private int sharedHolds;
+    private volatile boolean dirty;
+    private volatile long lsn;
+    private volatile long recLSN;
 
     public PageImpl(int pageNumber, byte[] data, PageCache pageCache) {
+        this(pageNumber, ByteBuffer.wrap(data), pageCache);
+    }
+
+    public PageImpl(int pageNumber, ByteBuffer buffer, PageCache pageCache) {
         this.pageNumber = pageNumber;
-        this.data = data;
+        this.buffer = buffer;
         this.pageCache = pageCache;
-        this.lock = new ReentrantLock();
+        this.latch = new StampedLock();
+        this.exclusive = latch.asWriteLock();
+        this.shared = latch.asReadLock();
     }
 
     @Override
     public void lock() {
-        lock.lock();
+        Thread current = Thread.currentThread();
+        if (owner == current) {
+            holds++;
+            return;
+        }
+        exclusive.lock();
+        owner = current;
+        holds = 1;
+        LATCHES.get()[0]++;
     }
 
     @Override
     public void unlock() {
-        lock.unlock();
+        if (owner != Thread.currentThread()) {
+            throw new IllegalMonitorStateException("page " + pageNumber + " is not locked by the current thread");
+        }
+        if (--holds > 0) {
+            return;
+        }
+        LATCHES.get()[0]--;
+        owner = null;
+        exclusive.unlock();
+    }
+
+    @Override
+    public void lockShared() {
+        if (owner == Thread.currentThread()) {
+            // 排他锁已经包含共享锁
+            sharedHolds++;
+            return;
+        }
+        shared.lock();
+        LATCHES.get()[0]++;
+    }
+
+    @Override
+    public void unlockShared() {
+        if (owner == Thread.currentThread() && sharedHolds > 0) {
+            sharedHolds--;
+            return;
+        }
+        LATCHES.get()[0]--;
+        shared.unlock();
+    }
+
+    @Override
+    public boolean isLockedByCurrentThread() {
+        return owner == Thread.currentThread();
+    }
+
+    /**
+     * 判断当前线程是否持有任何页的排他锁或共享锁
+     *
+     * @return true代表持有页锁
+     */
+    public static boolean holdsAnyLatch() {
+        return LATCHES.get()[0] > 0;
+    }
+
+    @Override
+    public long tryOptimisticRead() {
+        return latch.tryOptimisticRead();
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return latch.validate(stamp);
+    }
+
+    @Override
+    public long read(ToLongFunction<Page> reader) {
+        if (owner == Thread.currentThread()) {
+            return reader.applyAsLong(this);
+        }
+        long stamp = latch.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                long result = reader.applyAsLong(this);
+                if (latch.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException e) {
+                if (latch.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        shared.lock();
+        try {
+            return reader.applyAsLong(this);
+        } finally {
+            shared.unlock();
+        }
     }
 
     @Override
@@ -43,7 +163,21 @@ public class PageImpl implements Page {
 
     @Override
     public void setDirty(boolean dirty) {
-        this.dirty = dirty;
+        if (!dirty) {
+            this.dirty = false;
+            return;
+        }
+        // 在排他锁内变脏，写回在共享锁内清除脏标记时不会丢失
+        lock();
+        try {
+            if (!this.dirty && pageCache != null) {
+                // 先写recLSN再写dirty，看到脏标记的线程一定看到recLSN
+                recLSN = pageCache.getRecoveryLSN();
+            }
+            this.dirty = true;
+        } finally {
+            unlock();
+        }
     }
 
     @Override
@@ -58,7 +192,46 @@ public class PageImpl implements Page {
 
     @Override
     public byte[] getData() {
-        return data;
+        if (!buffer.hasArray()) {
+            throw new UnsupportedOperationException("page " + pageNumber + " is off-heap");
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public SubArray getSubArray(int start, int end) {
+        return new SubArray(buffer, start, end);
     }
 
+    @Override
+    public long getLSN() {
+        return lsn;
+    }
+
+    @Override
+    public void setLSN(long lsn) {
+        lock();
+        try {
+            if (this.lsn < lsn) {
+                this.lsn = lsn;
+            }
+            // 调用方可能在获取排他锁之前追加日志，recLSN取所有未写回日志的最小值
+            if (!dirty || lsn < recLSN) {
+                recLSN = lsn;
+            }
+            dirty = true;
+        } finally {
+            unlock();
+        }
+    }
+
+    @Override
+    public long getRecLSN() {
+        return recLSN;
+    }
 }
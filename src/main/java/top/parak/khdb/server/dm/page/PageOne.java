@@ -1,9 +1,10 @@
 package top.parak.khdb.server.dm.page;
 
 import top.parak.khdb.server.dm.pagecache.PageCache;
+import top.parak.khdb.toolkit.Codec;
 import top.parak.khdb.toolkit.RandomUtil;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * Page 第一页
@@ -33,52 +34,67 @@ public class PageOne {
     }
 
     /**
-     * 设置page打开
+     * 设置page打开，在page的排他锁内进行，调用方没有持有时临时获取
      *
      * @param page page
      */
     public static void setVcOpen(Page page) {
-        page.setDirty(true);
-        setVcOpen(page.getData());
+        page.lock();
+        try {
+            page.setDirty(true);
+            Codec.putBytes(page.getBuffer(), OFFSET_VALID_CHECK, RandomUtil.randomBytes(LENGTH_VALID_CHECK), 0, LENGTH_VALID_CHECK);
+        } finally {
+            page.unlock();
+        }
     }
 
+    /**
+     * 将page的{@code OFFSET_VALID_CHECK ~ LENGTH_VALID_CHECK}的内容复制到
+     * {@code OFFSET_VALID_CHECK + LENGTH_VALID_CHECK ~ OFFSET_VALID_CHECK + 2 * LENGTH_VALID_CHECK}，
+     * 在page的排他锁内进行，调用方没有持有时临时获取
+     *
+     * @param page page
+     */
     public static void SetVcClose(Page page) {
-        page.setDirty(true);
-        setVcClose(page.getData());
-    }
-
-    public static boolean checkVc(Page page) {
-        return checkVc(page.getData());
+        page.lock();
+        try {
+            page.setDirty(true);
+            ByteBuffer buf = page.getBuffer();
+            // LENGTH_VALID_CHECK为8，一次复制一个long
+            Codec.putLong(buf, OFFSET_VALID_CHECK + LENGTH_VALID_CHECK, Codec.getLong(buf, OFFSET_VALID_CHECK));
+        } finally {
+            page.unlock();
+        }
     }
 
     /**
-     * 在raw的{@code OFFSET_VALID_CHECK ~ LENGTH_VALID_CHECK}填充一个随机字节
+     * 检验page是否正常关闭
      *
-     * @param raw raw
+     * @param page page
+     * @return true代表page正常关闭
      */
-    private static void setVcOpen(byte[] raw) {
-        System.arraycopy(RandomUtil.randomBytes(LENGTH_VALID_CHECK), 0, raw, OFFSET_VALID_CHECK, LENGTH_VALID_CHECK);
+    public static boolean checkVc(Page page) {
+        ByteBuffer buf = page.getBuffer();
+        return Codec.getLong(buf, OFFSET_VALID_CHECK) == Codec.getLong(buf, OFFSET_VALID_CHECK + LENGTH_VALID_CHECK);
     }
 
     /**
-     * 在raw的{@code OFFSET_VALID_CHECK ~ LENGTH_VALID_CHECK}的内容复制到
-     * {@code OFFSET_VALID_CHECK + LENGTH_VALID_CHECK ~ OFFSET_VALID_CHECK + 2 * LENGTH_VALID_CHECK}
+     * 不持有页锁时检验page是否正常关闭
      *
-     * @param raw raw
+     * @param page page
+     * @return true代表page正常关闭
      */
-    private static void setVcClose(byte[] raw) {
-        System.arraycopy(raw, OFFSET_VALID_CHECK, raw, OFFSET_VALID_CHECK + LENGTH_VALID_CHECK, LENGTH_VALID_CHECK);
+    public static boolean readVc(Page page) {
+        return page.read(p -> checkVc(p) ? 1 : 0) == 1;
     }
 
     /**
-     * 检验page是否正常关闭
+     * 在raw的{@code OFFSET_VALID_CHECK ~ LENGTH_VALID_CHECK}填充一个随机字节
      *
      * @param raw raw
-     * @return true代表page正常关闭
      */
-    private static boolean checkVc(byte[] raw) {
-        return Arrays.equals(Arrays.copyOfRange(raw, OFFSET_VALID_CHECK, OFFSET_VALID_CHECK + LENGTH_VALID_CHECK),
-                Arrays.copyOfRange(raw, OFFSET_VALID_CHECK + LENGTH_VALID_CHECK, OFFSET_VALID_CHECK + 2 * LENGTH_VALID_CHECK));
+    private static void setVcOpen(byte[] raw) {
+        System.arraycopy(RandomUtil.randomBytes(LENGTH_VALID_CHECK), 0, raw, OFFSET_VALID_CHECK, LENGTH_VALID_CHECK);
     }
 
 }
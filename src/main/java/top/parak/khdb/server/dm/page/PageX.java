@@ -1,15 +1,25 @@
 package top.parak.khdb.server.dm.page;
 
 import top.parak.khdb.server.dm.pagecache.PageCache;
-import top.parak.khdb.toolkit.Parser;
+import top.parak.khdb.toolkit.Codec;
+import top.parak.khdb.toolkit.RunLength;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * Page 普通页
  * <p><b>FreeSpaceOffset</b></p>
  * <p>FSO：空闲位置的偏移量</p>
  * <p>写入page之前获取FSO，确定写入的位置，写入之后更新FSO</p>
+ * <p><b>PageLSN</b></p>
+ * <p>最近一次修改这一页的日志LSN，随页一起写回；
+ * 恢复时LSN不超过PageLSN的日志已经体现在页中</p>
+ * <p>页格式：[FSO 2] [PageLSN 8] [Data]</p>
+ * <p>FSO小于数据区起点的页是没有初始化过的全0页，空闲空间按空页计算，插入时从数据区起点开始写入</p>
+ * <p><b>修改顺序</b></p>
+ * <p>持有排他锁，追加日志得到LSN，修改页，再用{@link #setLSN}记录LSN；
+ * 修改方法本身不标记脏页，由setLSN标记脏页并以这条日志的LSN作为recLSN，
+ * 检查点不会删除页写回之前还需要的日志</p>
  *
  * @author KHighness
  * @since 2022-06-28
@@ -18,7 +28,8 @@ import java.util.Arrays;
 public class PageX {
 
     private static final short OFFSET_FREE = 0;
-    private static final short OFFSET_DATA = 2;
+    private static final short OFFSET_LSN = 2;
+    private static final short OFFSET_DATA = 10;
     public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OFFSET_DATA;
 
     /**
@@ -37,22 +48,76 @@ public class PageX {
      * @return FSO
      */
     public static short getFSO(Page page) {
-        return getFSO(page.getData());
+        return getFSO(page.getBuffer());
     }
 
     /**
-     * 向raw插入page
+     * 获取page的PageLSN
+     *
+     * @param page page
+     * @return PageLSN
+     */
+    public static long getLSN(Page page) {
+        return Codec.getLong(page.getBuffer(), OFFSET_LSN);
+    }
+
+    /**
+     * 不持有页锁时读取page的FSO
+     *
+     * @param page page
+     * @return FSO
+     */
+    public static short readFSO(Page page) {
+        return (short) page.read(PageX::getFSO);
+    }
+
+    /**
+     * 不持有页锁时读取page的PageLSN
+     *
+     * @param page page
+     * @return PageLSN
+     */
+    public static long readLSN(Page page) {
+        return page.read(PageX::getLSN);
+    }
+
+    /**
+     * 记录修改page的日志LSN并标记脏页，LSN只增不减；在page的排他锁内进行，调用方没有持有时临时获取
+     *
+     * @param page page
+     * @param lsn  日志LSN
+     */
+    public static void setLSN(Page page, long lsn) {
+        page.lock();
+        try {
+            ByteBuffer buf = page.getBuffer();
+            if (Codec.getLong(buf, OFFSET_LSN) < lsn) {
+                Codec.putLong(buf, OFFSET_LSN, lsn);
+            }
+            page.setLSN(lsn);
+        } finally {
+            page.unlock();
+        }
+    }
+
+    /**
+     * 向raw插入page，在page的排他锁内进行，调用方没有持有时临时获取；之后调用{@link #setLSN}
      *
      * @param page page
      * @param raw  raw
      * @return 插入位置
      */
     public static short insert(Page page, byte[] raw) {
-        page.setDirty(true);
-        short offset = getFSO(page.getData());
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
-        setFSO(page.getData(), (short) (offset + raw.length));
-        return offset;
+        page.lock();
+        try {
+            ByteBuffer buf = page.getBuffer();
+            short offset = dataEnd(getFSO(buf));
+            put(buf, raw, offset);
+            setFSO(buf, (short) (offset + raw.length));
+            return offset;
+        } finally {
+            page.unlock();
+        }
     }
 
     /**
@@ -62,35 +127,102 @@ public class PageX {
      * @return 空闲空间大小
      */
     public static int getFreeSpace(Page page) {
-        return PageCache.PAGE_SIZE - (int) getFSO(page.getData());
+        return PageCache.PAGE_SIZE - dataEnd(getFSO(page.getBuffer()));
+    }
+
+    /**
+     * 不持有页锁时获取page的空闲空间大小
+     *
+     * @param page page
+     * @return 空闲空间大小
+     */
+    public static int readFreeSpace(Page page) {
+        return PageCache.PAGE_SIZE - dataEnd(readFSO(page));
     }
 
     /**
-     * 江raw插入page中的offset位置，并更新page的FSO
+     * 直接从页的原始数据中获取空闲空间大小
+     *
+     * @param raw    包含若干个页的原始数据
+     * @param offset 页在raw中的起始位置
+     * @return 空闲空间大小
+     */
+    public static int getFreeSpace(ByteBuffer raw, int offset) {
+        return PageCache.PAGE_SIZE - dataEnd(Codec.getShort(raw, offset + OFFSET_FREE));
+    }
+
+    /**
+     * 江raw插入page中的offset位置，并更新page的FSO，在page的排他锁内进行
      *
      * @param page   page
      * @param raw    raw
      * @param offset offset
      */
     public static void recoverInsert(Page page, byte[] raw, short offset) {
-        page.setDirty(true);
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
-        short rawFSO = getFSO(page.getData());
-        if (rawFSO < offset + raw.length) {
-            setFSO(page.getData(), (short) (offset + raw.length));
+        page.lock();
+        try {
+            ByteBuffer buf = page.getBuffer();
+            put(buf, raw, offset);
+            short rawFSO = getFSO(buf);
+            if (rawFSO < offset + raw.length) {
+                setFSO(buf, (short) (offset + raw.length));
+            }
+        } finally {
+            page.unlock();
         }
     }
 
     /**
-     * 江raw插入page中的offset位置，不更新page的FSO
+     * 江raw插入page中的offset位置，不更新page的FSO，在page的排他锁内进行
      *
      * @param page   page
      * @param raw    raw
      * @param offset offset
      */
     public static void recoverUpdate(Page page, byte[] raw, short offset) {
-        page.setDirty(true);
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
+        page.lock();
+        try {
+            put(page.getBuffer(), raw, offset);
+        } finally {
+            page.unlock();
+        }
+    }
+
+    /**
+     * 将游程编码的raw解码插入page中的offset位置，并更新page的FSO，在page的排他锁内进行
+     *
+     * @param page    page
+     * @param encoded 游程编码的raw
+     * @param offset  offset
+     */
+    public static void recoverInsert(Page page, ByteBuffer encoded, short offset) {
+        page.lock();
+        try {
+            ByteBuffer buf = page.getBuffer();
+            int length = RunLength.decode(encoded.duplicate(), buf, offset);
+            short rawFSO = getFSO(buf);
+            if (rawFSO < offset + length) {
+                setFSO(buf, (short) (offset + length));
+            }
+        } finally {
+            page.unlock();
+        }
+    }
+
+    /**
+     * 将游程编码的新旧数据异或差量作用到page中的offset位置，不更新page的FSO，在page的排他锁内进行
+     *
+     * @param page   page
+     * @param delta  游程编码的异或差量
+     * @param offset offset
+     */
+    public static void recoverXor(Page page, ByteBuffer delta, short offset) {
+        page.lock();
+        try {
+            RunLength.decodeXor(delta.duplicate(), page.getBuffer(), offset);
+        } finally {
+            page.unlock();
+        }
     }
 
     /**
@@ -100,7 +232,7 @@ public class PageX {
      * @param ofData free space offset byes
      */
     private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OFFSET_FREE, OFFSET_DATA);
+        Codec.putShort(raw, OFFSET_FREE, ofData);
     }
 
     /**
@@ -110,7 +242,33 @@ public class PageX {
      * @return free space offset
      */
     private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+        return Codec.getShort(raw, OFFSET_FREE);
+    }
+
+    private static void setFSO(ByteBuffer buf, short ofData) {
+        Codec.putShort(buf, OFFSET_FREE, ofData);
+    }
+
+    /**
+     * 数据的结束位置，FSO小于数据区起点的页没有初始化过：
+     * 崩溃前扩展了文件、新页还没有写回时，重新打开后中间可能有全为0的页，视为空页
+     *
+     * @param fso FSO
+     * @return 数据的结束位置，不小于数据区起点
+     */
+    private static short dataEnd(short fso) {
+        return fso < OFFSET_DATA ? OFFSET_DATA : fso;
+    }
+
+    private static short getFSO(ByteBuffer buf) {
+        return Codec.getShort(buf, OFFSET_FREE);
+    }
+
+    /**
+     * 将raw写入buf的offset位置，不改变buf的position
+     */
+    private static void put(ByteBuffer buf, byte[] raw, int offset) {
+        Codec.putBytes(buf, offset, raw, 0, raw.length);
     }
 
 }
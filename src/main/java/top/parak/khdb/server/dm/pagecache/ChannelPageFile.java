@@ -0,0 +1,65 @@
+package top.parak.khdb.server.dm.pagecache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 通过FileChannel读写数据文件
+ * <p>使用按位置读写，不修改channel的position，不同page的读写可以并行下发到磁盘</p>
+ *
+ * @author KHighness
+ * @since 2022-07-02
+ * @email parakovo@gmail.com
+ */
+class ChannelPageFile implements PageFile {
+
+    private final RandomAccessFile file;
+    private final FileChannel fileChannel;
+
+    ChannelPageFile(RandomAccessFile file, FileChannel fileChannel) {
+        this.file = file;
+        this.fileChannel = fileChannel;
+    }
+
+    @Override
+    public void read(long offset, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = fileChannel.read(dst, offset);
+            if (n < 0) {
+                break;
+            }
+            offset += n;
+        }
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            offset += fileChannel.write(src, offset);
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        fileChannel.force(false);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return file.length();
+    }
+
+    @Override
+    public void setLength(long size) throws IOException {
+        file.setLength(size);
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+        file.close();
+    }
+
+}
@@ -0,0 +1,55 @@
+package top.parak.khdb.server.dm.pagecache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 堆外页帧池
+ * <p>打开时按缓存容量一次性分配直接内存，每{@code SLAB_FRAMES}个页帧一块，
+ * 页帧在页被淘汰时归还，缓存中的页不再占用堆内存</p>
+ *
+ * @author KHighness
+ * @since 2022-07-04
+ * @email parakovo@gmail.com
+ */
+class FramePool {
+
+    static final int SLAB_FRAMES = 1024;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> frames;
+
+    FramePool(int frameNumber) {
+        this.frames = new ConcurrentLinkedQueue<>();
+        for (int allocated = 0; allocated < frameNumber; allocated += SLAB_FRAMES) {
+            int n = Math.min(SLAB_FRAMES, frameNumber - allocated);
+            ByteBuffer slab = ByteBuffer.allocateDirect(n * PageCache.PAGE_SIZE);
+            for (int i = 0; i < n; i++) {
+                slab.limit((i + 1) * PageCache.PAGE_SIZE);
+                slab.position(i * PageCache.PAGE_SIZE);
+                frames.add(slab.slice());
+            }
+        }
+    }
+
+    /**
+     * 获取一个页帧，池已耗尽时退化为堆内存
+     *
+     * @return 页帧
+     */
+    ByteBuffer allocate() {
+        ByteBuffer frame = frames.poll();
+        return frame != null ? frame : ByteBuffer.allocate(PageCache.PAGE_SIZE);
+    }
+
+    /**
+     * 归还页帧，堆内存页帧直接丢弃
+     *
+     * @param frame 页帧
+     */
+    void release(ByteBuffer frame) {
+        if (frame.isDirect()) {
+            frames.add(frame);
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+package top.parak.khdb.server.dm.pagecache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 通过内存映射读写数据文件
+ * <p>文件按{@code CHUNK_SIZE}分段映射，读写直接访问映射区域，没有系统调用；
+ * 写入超出映射范围时扩展文件并重新映射最后一段；
+ * 记录写入过的分段，{@link #force()}只msync这些分段，fsync的开销与写入量相关，与文件大小无关</p>
+ * <p>读写不加锁，截断仍在映射的文件后访问被截去的部分会收到SIGBUS，所以映射期间不缩小文件：
+ * {@link #setLength}只缩小逻辑长度并把截去的部分清零，之后的读写与截断再扩展的文件一致；
+ * {@link #close()}丢弃映射之后才把文件截断到逻辑长度</p>
+ *
+ * @author KHighness
+ * @since 2022-07-02
+ * @email parakovo@gmail.com
+ */
+class MappedPageFile implements PageFile {
+
+    static final long CHUNK_SIZE = 64L << 20;
+    private static final byte[] ZEROS = new byte[PageCache.PAGE_SIZE];
+
+    private final RandomAccessFile file;
+    private final FileChannel fileChannel;
+    private final Lock mapLock;
+    /**
+     * 上一次force之后写入过的分段序号
+     */
+    private final Set<Integer> dirtyChunks;
+
+    private volatile Mapping mapping;
+    /**
+     * 逻辑上的文件长度，不超过映射的长度，只在{@code mapLock}内修改
+     */
+    private volatile long length;
+
+    MappedPageFile(RandomAccessFile file, FileChannel fileChannel) throws IOException {
+        this.file = file;
+        this.fileChannel = fileChannel;
+        this.mapLock = new ReentrantLock();
+        this.dirtyChunks = ConcurrentHashMap.newKeySet();
+        this.length = file.length();
+        this.mapping = remap(new Mapping(new MappedByteBuffer[0], 0), length);
+    }
+
+    @Override
+    public void read(long offset, ByteBuffer dst) {
+        Mapping m = mapping;
+        long end = Math.min(m.size, length);
+        while (dst.hasRemaining() && offset < end) {
+            ByteBuffer chunk = m.slice(offset, dst.remaining());
+            offset += chunk.remaining();
+            dst.put(chunk);
+        }
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) throws IOException {
+        Mapping m = mapping;
+        long end = offset + src.remaining();
+        if (end > length) {
+            m = grow(end);
+        }
+        while (src.hasRemaining()) {
+            dirtyChunks.add((int) (offset / CHUNK_SIZE));
+            ByteBuffer chunk = m.slice(offset, src.remaining());
+            offset += chunk.remaining();
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + chunk.remaining());
+            chunk.put(part);
+            src.position(part.position());
+        }
+    }
+
+    @Override
+    public void force() {
+        MappedByteBuffer[] chunks = mapping.chunks;
+        for (Integer i : dirtyChunks) {
+            // 先清除标记再msync，之后的写入会重新标记
+            dirtyChunks.remove(i);
+            if (i < chunks.length) {
+                chunks[i].force();
+            }
+        }
+    }
+
+    @Override
+    public long size() {
+        return length;
+    }
+
+    @Override
+    public void setLength(long size) throws IOException {
+        mapLock.lock();
+        try {
+            if (size > mapping.size) {
+                grow(size);
+                return;
+            }
+            // 映射期间不截断文件，截去的部分清零，再次扩展时读到的是0；
+            // 截去的部分不属于文件，不需要msync
+            Mapping m = mapping;
+            long old = length;
+            length = size;
+            for (long offset = size; offset < old; ) {
+                ByteBuffer chunk = m.slice(offset, (int) Math.min(Integer.MAX_VALUE, old - offset));
+                offset += chunk.remaining();
+                while (chunk.hasRemaining()) {
+                    chunk.put(ZEROS, 0, Math.min(ZEROS.length, chunk.remaining()));
+                }
+            }
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    /**
+     * 丢弃映射之后把文件截断到逻辑长度，调用方保证不再有读写
+     */
+    @Override
+    public void close() throws IOException {
+        mapping = new Mapping(new MappedByteBuffer[0], 0);
+        if (file.length() > length) {
+            file.setLength(length);
+        }
+        fileChannel.close();
+        file.close();
+    }
+
+    /**
+     * 把逻辑长度扩展到size，超出映射时扩展文件并重新映射
+     */
+    private Mapping grow(long size) throws IOException {
+        mapLock.lock();
+        try {
+            if (mapping.size < size) {
+                if (file.length() < size) {
+                    file.setLength(size);
+                }
+                mapping = remap(mapping, size);
+            }
+            if (length < size) {
+                length = size;
+            }
+            return mapping;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    /**
+     * 映射文件的{@code 0 ~ size}，复用已经完整映射的分段
+     */
+    private Mapping remap(Mapping old, long size) throws IOException {
+        int n = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            long start = i * CHUNK_SIZE;
+            long length = Math.min(CHUNK_SIZE, size - start);
+            if (i < old.chunks.length && old.chunks[i].capacity() == length) {
+                chunks[i] = old.chunks[i];
+            } else {
+                chunks[i] = fileChannel.map(FileChannel.MapMode.READ_WRITE, start, length);
+            }
+        }
+        return new Mapping(chunks, size);
+    }
+
+    private static class Mapping {
+
+        final MappedByteBuffer[] chunks;
+        final long size;
+
+        Mapping(MappedByteBuffer[] chunks, long size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        /**
+         * 获取从offset开始、不跨越分段、最多length字节的视图
+         */
+        ByteBuffer slice(long offset, int length) {
+            ByteBuffer chunk = chunks[(int) (offset / CHUNK_SIZE)].duplicate();
+            int position = (int) (offset % CHUNK_SIZE);
+            chunk.position(position);
+            chunk.limit(Math.min(chunk.capacity(), position + length));
+            return chunk;
+        }
+
+    }
+
+}
@@ -2,12 +2,13 @@ package top.parak.khdb.server.dm.pagecache;
 
 import top.parak.khdb.common.Error;
 import top.parak.khdb.common.Panic;
+import top.parak.khdb.server.dm.logger.Logger;
 import top.parak.khdb.server.dm.page.Page;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author KHighness
@@ -18,10 +19,53 @@ public interface PageCache {
 
     public static final int PAGE_SIZE = 1 << 13;
 
+    /**
+     * 分配一个新页，见{@link #newPages(int, byte[])}
+     *
+     * @param initData 初始数据
+     * @return 页号
+     */
     int newPage(byte[] initData);
 
+    /**
+     * 分配count个连续的新页，每页的初始数据都是initData的副本
+     * <p>新页作为脏页放入缓存，由后台写回；数据文件按区间预先扩展，分配本身不需要I/O。
+     * 已分配的页数在新页写回之前记录到布局文件中，重新打开后不会重复分配；页号超出int范围时panic</p>
+     *
+     * @param count    页数
+     * @param initData 初始数据
+     * @return 第一个页的页号
+     */
+    int newPages(int count, byte[] initData);
+
     Page getPage(int pageNo) throws Exception;
 
+    /**
+     * 异步获取页，未命中时在I/O线程中读取，调用线程不阻塞：
+     * 缓存已满时淘汰页、写回脏页和持久化日志也在I/O线程中进行；
+     * 同一页正在加载时与其共享同一次读取
+     *
+     * @param pageNo 页号
+     * @return 页的future，完成之后页被引用，使用完需要释放
+     */
+    CompletableFuture<Page> getPageAsync(int pageNo);
+
+    /**
+     * 批量获取页，连续的未缓存页合并为一次读取
+     *
+     * @param pageNos 页号
+     * @return 与pageNos一一对应的页，使用完需要逐个释放
+     */
+    Page[] getPages(int[] pageNos) throws Exception;
+
+    /**
+     * 异步将{@code fromPageNo}开始的count个页读入缓存
+     *
+     * @param fromPageNo 起始页号
+     * @param count      页数
+     */
+    void prefetch(int fromPageNo, int count);
+
     void close();
 
     void release(Page page);
@@ -30,50 +74,122 @@ public interface PageCache {
 
     int getPageNumber();
 
+    /**
+     * 从fromPageNo开始读满dst，不经过缓存，也不会看到缓存中尚未写回的修改
+     *
+     * @param fromPageNo 起始页号
+     * @param dst        目标缓冲区
+     */
+    void readPages(int fromPageNo, ByteBuffer dst);
+
+    /**
+     * 判断页是否在缓存中，包括正在加载的页
+     *
+     * @param pageNo 页号
+     * @return true代表在缓存中
+     */
+    boolean isCached(int pageNo);
+
     void flushPage(Page page);
 
+    /**
+     * 在I/O线程中写回页并fsync，future完成之前不能释放页
+     *
+     * @param page 页
+     * @return 写回完成的future
+     */
+    CompletableFuture<Void> flushPageAsync(Page page);
+
+    /**
+     * 批量写回页，按页号排序后连续的页合并为一次写入，整批只fsync一次；
+     * 写回需要获取页的共享锁，持有任何页锁时调用抛出{@link IllegalStateException}
+     *
+     * @param pages 页
+     */
+    void flushPages(Collection<Page> pages);
+
+    /**
+     * 写回所有脏页并fsync，返回时调用之前的修改都已持久化；
+     * 设置了日志时，删除仍是脏页或正在写回的页的最小recLSN之前的整段日志；
+     * 与{@link #flushPages}一样不能在持有页锁时调用
+     */
+    void checkpoint();
+
+    /**
+     * 设置日志，之后写回页之前先把日志持久化到页的LSN，保证先写日志
+     *
+     * @param logger 日志
+     */
+    void setLogger(Logger logger);
+
+    /**
+     * 获取不记日志的修改使页变脏时记录的recLSN：此时已经持久化的日志末尾，
+     * 之后追加的日志都从它之后开始；没有设置日志时为0；记日志的修改以日志自身的LSN作为recLSN
+     *
+     * @return recLSN
+     */
+    long getRecoveryLSN();
+
+    /**
+     * 获取统计的快照，不阻塞读写
+     *
+     * @return 快照
+     */
+    PageCacheStats getStats();
+
     public static PageCacheImpl create(String path, long memory) {
-        File f = new File(path + PageCacheImpl.DB_SUFFIX);
-        try {
-            if (!f.createNewFile()) {
-                Panic.panic(Error.FileExistsException);
+        return create(path, memory, new PageCacheOptions());
+    }
+
+    /**
+     * 创建表空间，主文件为{@code path + ".db"}，{@link PageCacheOptions#extraFiles}中的文件一起创建；
+     * 文件数、{@link PageCacheOptions#stripePages}和已分配的页数记录在{@code path + ".layout"}中
+     */
+    public static PageCacheImpl create(String path, long memory, PageCacheOptions options) {
+        File[] files = PageCacheImpl.dataFiles(path, options);
+        PageCacheImpl.createLayout(path, options);
+        for (File f : files) {
+            try {
+                if (!f.createNewFile()) {
+                    Panic.panic(Error.FileExistsException);
+                }
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            if (!f.canRead() || !f.canWrite()) {
+                Panic.panic(Error.FileCannotRWException);
             }
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        if (!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
         }
 
-        RandomAccessFile randomAccessFile = null;
-        FileChannel fileChannel = null;
-        try {
-            randomAccessFile = new RandomAccessFile(f, "rw");
-            fileChannel = randomAccessFile.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-        return new PageCacheImpl(randomAccessFile, fileChannel, (int) memory / PAGE_SIZE);
+        PageCacheImpl pageCache = new PageCacheImpl(PageCacheImpl.openPageFile(files, options), (int) (memory / PAGE_SIZE), options,
+                new File(path + PageCacheImpl.LAYOUT_SUFFIX));
+        pageCache.registerMBean(path);
+        return pageCache;
     }
 
     public static PageCacheImpl open(String path, long memory) {
-        File f = new File(path + PageCacheImpl.DB_SUFFIX);
-        if (!f.exists()) {
-            Panic.panic(Error.FileNotExistsException);
-        }
-        if (!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
+        return open(path, memory, new PageCacheOptions());
+    }
 
-        RandomAccessFile randomAccessFile = null;
-        FileChannel fileChannel = null;
-        try {
-            randomAccessFile = new RandomAccessFile(f, "rw");
-            fileChannel = randomAccessFile.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
+    /**
+     * 打开表空间，文件数和{@link PageCacheOptions#stripePages}与创建时不一致时panic
+     */
+    public static PageCacheImpl open(String path, long memory, PageCacheOptions options) {
+        PageCacheImpl.checkLayout(path, options);
+        File[] files = PageCacheImpl.dataFiles(path, options);
+        for (File f : files) {
+            if (!f.exists()) {
+                Panic.panic(Error.FileNotExistsException);
+            }
+            if (!f.canRead() || !f.canWrite()) {
+                Panic.panic(Error.FileCannotRWException);
+            }
         }
-        return new PageCacheImpl(randomAccessFile, fileChannel, (int) memory / PAGE_SIZE);
+
+        PageCacheImpl pageCache = new PageCacheImpl(PageCacheImpl.openPageFile(files, options), (int) (memory / PAGE_SIZE), options,
+                new File(path + PageCacheImpl.LAYOUT_SUFFIX));
+        pageCache.registerMBean(path);
+        return pageCache;
     }
 
 }
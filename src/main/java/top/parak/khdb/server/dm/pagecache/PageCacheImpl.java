@@ -3,18 +3,71 @@ package top.parak.khdb.server.dm.pagecache;
 import top.parak.khdb.common.Error;
 import top.parak.khdb.common.Panic;
 import top.parak.khdb.server.common.AbstractCache;
+import top.parak.khdb.server.common.LatencyHistogram;
+import top.parak.khdb.server.common.MBeans;
+import top.parak.khdb.server.dm.logger.Logger;
 import top.parak.khdb.server.dm.page.Page;
 import top.parak.khdb.server.dm.page.PageImpl;
 
+import javax.management.ObjectName;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * <p>脏页在释放时登记，由{@link PageWriter}在后台写回；
+ * 写回、淘汰和新建页都不fsync，由写回线程每批fsync一次，
+ * {@link #checkpoint()}把所有脏页持久化</p>
+ * <p><b>先写日志</b></p>
+ * <p>设置了日志之后，任何一次写回（后台写回、淘汰、flush）之前，
+ * 都先调用{@link Logger#flushUpTo(long)}把日志持久化到页的LSN；
+ * 检查点之后删除不再需要的日志段</p>
+ * <p><b>预读</b></p>
+ * <ol>
+ * <li>连续两次未命中相邻的页时，异步读入后续{@code READ_AHEAD_PAGES}个页</li>
+ * <li>访问到预读窗口的中点时，异步读入下一个窗口，顺序扫描不会再未命中</li>
+ * <li>连续的未缓存页合并为一次读取，预读的页进入A1in，不会挤掉热点页</li>
+ * </ol>
+ * <p><b>分配新页</b></p>
+ * <ol>
+ * <li>数据文件每次扩展{@code extentPages}个页，页号从已扩展的区间中分配，不需要I/O</li>
+ * <li>新页作为脏页直接放入缓存，由后台写回，不逐页写入文件</li>
+ * <li>已分配的页数记录在布局文件中：写入页号超过已记录页数的页之前，先记录当前页数并fsync，
+ * 文件中有数据的页一定在记录的页数之内；打开时以记录的页数为准，全为0的页也不会被重复分配</li>
+ * <li>没有记录页数的旧表空间按文件大小计算页数；关闭时记录页数并截去未使用的区间</li>
+ * </ol>
+ * <p><b>异步读写</b></p>
+ * <p>{@link #getPageAsync}和{@link #flushPageAsync}在固定的I/O线程池中读写，
+ * 调用方可以同时发起多个页的读取，与计算重叠；未命中的读取与同步获取共享缓存中的加载</p>
+ * <p><b>表空间</b></p>
+ * <p>页的文件偏移按64位计算，单个文件可以超过2GB；设置了{@link PageCacheOptions#extraFiles}时，
+ * 页按{@link PageCacheOptions#stripePages}轮流分布在多个文件中，见{@link StripedPageFile}；
+ * 文件数和stripePages记录在{@code path + LAYOUT_SUFFIX}中，打开时校验</p>
+ * <p><b>统计</b></p>
+ * <p>{@link #getStats()}返回缓存计数、脏页数、读写页数和fsync延迟的快照，
+ * 打开时以{@link PageCacheMXBean}注册到JMX</p>
+ *
  * @author KHighness
  * @since 2022-06-28
  * @email parakovo@gmail.com
@@ -22,49 +75,291 @@ import java.util.concurrent.locks.ReentrantLock;
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     private static final int MEM_MIN_LTM = 10;
+    private static final int READ_AHEAD_PAGES = 32;
+    private static final int MAX_READ_AHEAD_TRIGGERS = 1024;
+    private static final int PREFETCH_THREADS = 2;
+    private static final int EVICT_VERSION_STRIPES = 1024;
     public static final String DB_SUFFIX = ".db";
+    public static final String LAYOUT_SUFFIX = ".layout";
+    private static final int LAYOUT_SIZE = 12;
+    /**
+     * 没有记录页数的布局文件
+     */
+    private static final int LEGACY_LAYOUT_SIZE = 8;
+    private static final int OFFSET_PAGE_COUNT = 8;
 
-    private RandomAccessFile file;
-    private FileChannel fileChannel;
-    private Lock fileLock;
+    private PageFile pageFile;
     private AtomicInteger pageNumbers;
+    /**
+     * 已释放的脏页，按页号排序
+     */
+    private ConcurrentSkipListMap<Integer, Page> dirtyPages;
+    /**
+     * dirtyPages中的页数，{@link ConcurrentSkipListMap#size()}需要遍历整个map
+     */
+    private AtomicInteger dirtyCount;
+    /**
+     * 有写入还没有fsync
+     */
+    private AtomicBoolean unsynced;
+    /**
+     * 串行化fsync，发现没有未同步的写入时，之前的fsync一定已经完成
+     */
+    private Lock syncLock;
+    /**
+     * 下一批写回的起始页号
+     */
+    private int writeCursor;
+    private PageWriter writer;
+    /**
+     * 每批写回的最大页数，写回期间这些页不能被淘汰
+     */
+    private int batchPages;
+    private Lock writeBackLock;
+    /**
+     * 堆外页帧池，null代表页帧分配在堆内存
+     */
+    private FramePool framePool;
+    /**
+     * 上一次未命中的页号
+     */
+    private AtomicInteger lastMiss;
+    /**
+     * 预读触发页号 -> 下一个预读窗口的起始页号
+     */
+    private ConcurrentHashMap<Integer, Integer> readAheadTriggers;
+    /**
+     * 按页号分段，页被淘汰时递增，预读期间发生变化时丢弃读到的旧数据
+     */
+    private AtomicLongArray evictVersions;
+    private ExecutorService prefetcher;
+    /**
+     * 异步读写使用的I/O线程
+     */
+    private ExecutorService ioExecutor;
+    /**
+     * 写回页之前需要持久化的日志，null代表不检查
+     */
+    private volatile Logger logger;
 
-    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel,int maxResource) {
+    private LongAdder pagesRead;
+    private LongAdder pagesWritten;
+    private LatencyHistogram fsyncLatency;
+    private ObjectName mbeanName;
+
+    private int extentPages;
+    /**
+     * 数据文件已经扩展到的页数
+     */
+    private volatile int allocatedPages;
+    private Lock extendLock;
+
+    /**
+     * 布局文件，null代表不记录页数
+     */
+    private RandomAccessFile layout;
+    private int layoutFiles;
+    private int layoutStripePages;
+    /**
+     * 布局文件中已经持久化的页数
+     */
+    private volatile int recordedPages;
+    private Lock layoutLock;
+
+    PageCacheImpl(PageFile pageFile, int maxResource) {
+        this(pageFile, maxResource, new PageCacheOptions());
+    }
+
+    PageCacheImpl(PageFile pageFile, int maxResource, PageCacheOptions options) {
+        this(pageFile, maxResource, options, null);
+    }
+
+    /**
+     * @param layoutFile 记录页数的布局文件，null时按文件大小计算页数，也不记录页数
+     */
+    PageCacheImpl(PageFile pageFile, int maxResource, PageCacheOptions options, File layoutFile) {
         super(maxResource);
         if (maxResource < MEM_MIN_LTM) {
             Panic.panic(Error.MemTooSmallException);
         }
-        long length = 0;
+        this.pageFile = pageFile;
+        this.layoutFiles = 1 + options.extraFiles.length;
+        this.layoutStripePages = Math.max(1, options.stripePages);
+        this.layoutLock = new ReentrantLock();
+        int pages = 0;
         try {
-            length = file.length();
+            long size = pageFile.size() / PAGE_SIZE;
+            if (size > Integer.MAX_VALUE) {
+                Panic.panic(Error.DataTooLargeException);
+            }
+            pages = (int) size;
+            if (layoutFile != null) {
+                this.layout = new RandomAccessFile(layoutFile, "rw");
+                if (layout.length() == LAYOUT_SIZE) {
+                    pages = readPageCount();
+                } else {
+                    // 旧表空间没有布局文件或没有记录页数，按文件大小记录
+                    recordPageCount(pages);
+                }
+            }
+            if (pages > size) {
+                // 记录页数之后、数据文件扩展之前崩溃
+                pageFile.setLength(pageOffset(pages + 1));
+                size = pages;
+            }
+            this.allocatedPages = (int) size;
         } catch (IOException e) {
             Panic.panic(e);
         }
-        this.file = file;
-        this.fileChannel = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int) length / PAGE_SIZE);
+        this.recordedPages = pages;
+        this.pageNumbers = new AtomicInteger(pages);
+        this.extentPages = Math.max(1, options.extentPages);
+        this.extendLock = new ReentrantLock();
+        if (options.offHeap) {
+            this.framePool = new FramePool(maxResource);
+        }
+        this.dirtyPages = new ConcurrentSkipListMap<>();
+        this.dirtyCount = new AtomicInteger(0);
+        this.unsynced = new AtomicBoolean(false);
+        this.syncLock = new ReentrantLock();
+        this.batchPages = Math.max(1, Math.min(PageWriter.MAX_BATCH_PAGES, maxResource / 4));
+        this.writeBackLock = new ReentrantLock();
+        this.writer = new PageWriter(this, maxResource);
+        this.writer.start();
+        this.lastMiss = new AtomicInteger(0);
+        this.readAheadTriggers = new ConcurrentHashMap<>();
+        this.evictVersions = new AtomicLongArray(EVICT_VERSION_STRIPES);
+        this.prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS, r -> {
+            Thread thread = new Thread(r, "khdb-page-prefetcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ioExecutor = Executors.newFixedThreadPool(Math.max(1, options.ioThreads), r -> {
+            Thread thread = new Thread(r, "khdb-page-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pagesRead = new LongAdder();
+        this.pagesWritten = new LongAdder();
+        this.fsyncLatency = new LatencyHistogram();
     }
 
     @Override
     public int newPage(byte[] initData) {
-        int pageNo = pageNumbers.incrementAndGet();
-        Page page = new PageImpl(pageNo, initData, null);
-        flush(page);
-        return pageNo;
+        return newPages(1, initData);
+    }
+
+    @Override
+    public int newPages(int count, byte[] initData) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count: " + count);
+        }
+        int first;
+        while (true) {
+            int current = pageNumbers.get();
+            if (count > Integer.MAX_VALUE - current) {
+                Panic.panic(Error.DataTooLargeException);
+            }
+            if (pageNumbers.compareAndSet(current, current + count)) {
+                first = current + 1;
+                break;
+            }
+        }
+        allocate(first + count - 1);
+        for (int pageNo = first; pageNo < first + count; pageNo++) {
+            install(pageNo, initData);
+        }
+        return first;
     }
 
     @Override
     public Page getPage(int pageNo) throws Exception {
-        return get(pageNo);
+        Page page = get(pageNo);
+        triggerReadAhead(pageNo);
+        return page;
+    }
+
+    @Override
+    public CompletableFuture<Page> getPageAsync(int pageNo) {
+        CompletableFuture<Page> future = getAsync(pageNo, ioExecutor);
+        triggerReadAhead(pageNo);
+        return future;
+    }
+
+    @Override
+    public Page[] getPages(int[] pageNos) throws Exception {
+        int[] sorted = pageNos.clone();
+        Arrays.sort(sorted);
+        int maxPageNo = pageNumbers.get();
+        int i = 0;
+        while (i < sorted.length) {
+            int from = sorted[i];
+            if (from < 1 || from > maxPageNo || contains(from)) {
+                i++;
+                continue;
+            }
+            int to = from;
+            while (++i < sorted.length && sorted[i] <= to + 1) {
+                if (sorted[i] == to + 1) {
+                    if (sorted[i] > maxPageNo || contains(sorted[i])) {
+                        break;
+                    }
+                    to++;
+                }
+            }
+            loadRun(from, to - from + 1);
+        }
+
+        Page[] pages = new Page[pageNos.length];
+        try {
+            for (int j = 0; j < pageNos.length; j++) {
+                pages[j] = get(pageNos[j]);
+            }
+        } catch (Exception e) {
+            for (Page page : pages) {
+                if (page != null) {
+                    release(page.getPageNumber());
+                }
+            }
+            throw e;
+        }
+        return pages;
+    }
+
+    @Override
+    public void prefetch(int fromPageNo, int count) {
+        int from = Math.max(fromPageNo, 1);
+        int to = Math.min(fromPageNo + count - 1, pageNumbers.get());
+        if (from > to) {
+            return;
+        }
+        prefetcher.execute(() -> load(from, to));
     }
 
     @Override
     public void close() {
+        // 不能中断预读和I/O线程，中断会关闭正在读写的FileChannel
+        prefetcher.shutdown();
+        ioExecutor.shutdown();
+        try {
+            prefetcher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            ioExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer.close();
+        checkpoint();
         super.close();
+        MBeans.unregister(mbeanName);
         try {
-            fileChannel.close();
-            file.close();
+            // 先记录页数，再截去预先扩展但没有使用的区间
+            recordPageCount(pageNumbers.get());
+            pageFile.setLength(pageOffset(pageNumbers.get() + 1));
+            pageFile.force();
+            pageFile.close();
+            if (layout != null) {
+                layout.close();
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -72,18 +367,47 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     @Override
     public void release(Page page) {
+        if (page.isDirty()) {
+            addDirty(page);
+        }
         release(page.getPageNumber());
     }
 
+    /**
+     * 先丢弃页号大于maxPageNo的脏页登记和缓存中的页，不写回，再截断文件，
+     * 之后的写回和淘汰不会把截去的页重新写入文件
+     */
     @Override
     public void truncateByPageNo(int maxPageNo) {
+        pageNumbers.set(maxPageNo);
+        // 等待正在进行的一批写回，之后的批次找不到被丢弃的页
+        writeBackLock.lock();
+        try {
+            for (Page page : dirtyPages.tailMap(maxPageNo + 1).values()) {
+                removeDirty(page);
+            }
+            discard(key -> key > maxPageNo, (page, referenced) -> {
+                page.setDirty(false);
+                evictVersions.incrementAndGet(page.getPageNumber() % EVICT_VERSION_STRIPES);
+                if (!referenced) {
+                    releaseFrame(page.getBuffer());
+                }
+            });
+        } finally {
+            writeBackLock.unlock();
+        }
+
         long size = pageOffset(maxPageNo + 1);
+        extendLock.lock();
         try {
-            file.setLength(size);
+            recordPageCount(maxPageNo);
+            pageFile.setLength(size);
+            allocatedPages = maxPageNo;
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            extendLock.unlock();
         }
-        pageNumbers.set(maxPageNo);
     }
 
     @Override
@@ -91,55 +415,664 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         return pageNumbers.intValue();
     }
 
+    @Override
+    public void readPages(int fromPageNo, ByteBuffer dst) {
+        try {
+            pageFile.read(pageOffset(fromPageNo), dst);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public boolean isCached(int pageNo) {
+        return contains(pageNo);
+    }
+
+    @Override
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public long getRecoveryLSN() {
+        Logger logger = this.logger;
+        return logger == null ? 0 : logger.getFlushedLSN();
+    }
+
+    @Override
+    public PageCacheStats getStats() {
+        return new PageCacheStats(getCacheStats(), dirtyCount.get(), pageNumbers.get(),
+                pagesRead.sum(), pagesWritten.sum(), fsyncLatency.snapshot());
+    }
+
     @Override
     public void flushPage(Page page) {
         flush(page);
     }
 
+    @Override
+    public CompletableFuture<Void> flushPageAsync(Page page) {
+        return CompletableFuture.runAsync(() -> flush(page), ioExecutor);
+    }
+
+    @Override
+    public void flushPages(Collection<Page> pages) {
+        TreeSet<Integer> pageNos = new TreeSet<>();
+        for (Page page : pages) {
+            pageNos.add(page.getPageNumber());
+        }
+        writeBack(new ArrayList<>(pageNos));
+        sync();
+    }
+
+    /**
+     * 写回脏页之后计算可以删除的日志：
+     * <ol>
+     * <li>先读取已持久化的LSN，之后持久化的日志都不早于它</li>
+     * <li>持有{@code writeBackLock}扫描缓存和正在淘汰的页，取脏页recLSN的最小值，
+     * 此时没有进行到一半的写回批次，淘汰写回在写入之后才清除脏标记；
+     * 在每页的共享锁内读取，持有排他锁的修改要么已经调用setLSN，要么在这之后才追加日志，LSN大于第一步的LSN</li>
+     * <li>fsync之后，扫描时已经不是脏页的页都已持久化，删除最小recLSN之前的整段日志</li>
+     * </ol>
+     */
+    @Override
+    public void checkpoint() {
+        Logger logger = this.logger;
+        List<Integer> pageNos = new ArrayList<>(dirtyPages.keySet());
+        forEachCached(page -> {
+            if (page.isDirty() && !dirtyPages.containsKey(page.getPageNumber())) {
+                pageNos.add(page.getPageNumber());
+            }
+        });
+        Collections.sort(pageNos);
+        writeBack(pageNos);
+        if (logger == null) {
+            sync();
+            return;
+        }
+
+        long[] lsn = new long[1];
+        writeBackLock.lock();
+        try {
+            lsn[0] = logger.getFlushedLSN();
+            forEachCached(page -> {
+                page.lockShared();
+                try {
+                    if (page.isDirty()) {
+                        lsn[0] = Math.min(lsn[0], page.getRecLSN());
+                    }
+                } finally {
+                    page.unlockShared();
+                }
+            });
+        } finally {
+            writeBackLock.unlock();
+        }
+        sync();
+        logger.truncateBefore(lsn[0]);
+    }
+
+    /**
+     * 以数据文件路径注册JMX
+     *
+     * @param path 数据文件路径，不含后缀
+     */
+    void registerMBean(String path) {
+        mbeanName = MBeans.register("PageCache", path + DB_SUFFIX, new PageCacheMonitor(this));
+    }
+
+    /**
+     * 获取已释放的脏页数量
+     *
+     * @return 脏页数量
+     */
+    int getDirtyPageNumber() {
+        return dirtyCount.get();
+    }
+
+    /**
+     * 从上一批结束的位置开始，按页号顺序写回最多maxPages个脏页并fsync
+     *
+     * @param maxPages 最大页数
+     */
+    void writeBack(int maxPages) {
+        List<Integer> pageNos = new ArrayList<>(maxPages);
+        collect(dirtyPages.tailMap(writeCursor), pageNos, maxPages);
+        collect(dirtyPages.headMap(writeCursor), pageNos, maxPages);
+        if (!pageNos.isEmpty()) {
+            writeCursor = pageNos.get(pageNos.size() - 1) + 1;
+            Collections.sort(pageNos);
+            writeBack(pageNos);
+        }
+        sync();
+    }
+
     @Override
     protected Page getForCache(long key) throws Exception {
         int pageNo = (int) key;
         long offset = PageCacheImpl.pageOffset(pageNo);
+        if (lastMiss.getAndSet(pageNo) == pageNo - 1) {
+            readAhead(pageNo + 1);
+        }
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+        ByteBuffer frame = allocateFrame();
+        ByteBuffer buf = frame.duplicate();
         try {
-            fileChannel.position(offset);
-            fileChannel.read(buf);
+            pageFile.read(offset, buf);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        fileLock.unlock();
-        return new PageImpl(pageNo, buf.array(), this);
+        pagesRead.increment();
+        // 复用的页帧需要清空超出文件末尾的部分
+        while (buf.hasRemaining()) {
+            buf.put((byte) 0);
+        }
+        return new PageImpl(pageNo, frame, this);
     }
 
     @Override
     protected void releaseForCache(Page page) {
         if (page.isDirty()) {
-            flush(page);
+            write(page);
             page.setDirty(false);
         }
+        evictVersions.incrementAndGet(page.getPageNumber() % EVICT_VERSION_STRIPES);
+        removeDirty(page);
+        releaseFrame(page.getBuffer());
+    }
+
+    /**
+     * 保证数据文件至少有lastPageNo个页，不足时按区间扩展
+     *
+     * @param lastPageNo 需要的最大页号
+     */
+    private void allocate(int lastPageNo) {
+        if (lastPageNo <= allocatedPages) {
+            return;
+        }
+        extendLock.lock();
+        try {
+            if (lastPageNo > allocatedPages) {
+                long pages = ((long) lastPageNo + extentPages - 1) / extentPages * extentPages;
+                pageFile.setLength(pages * PAGE_SIZE);
+                allocatedPages = (int) Math.min(pages, Integer.MAX_VALUE);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            extendLock.unlock();
+        }
+    }
+
+    /**
+     * 把新页作为脏页放入缓存
+     * <p>预读可能已经把文件中的空页放入缓存，此时覆盖缓存中的页；
+     * 所有页都被引用、无法放入缓存时直接写入文件</p>
+     *
+     * @param pageNo   页号
+     * @param initData 初始数据
+     */
+    private void install(int pageNo, byte[] initData) {
+        ByteBuffer frame = allocateFrame();
+        ByteBuffer buf = frame.duplicate();
+        buf.put(initData, 0, Math.min(initData.length, PAGE_SIZE));
+        while (buf.hasRemaining()) {
+            buf.put((byte) 0);
+        }
+        Page page = new PageImpl(pageNo, frame, this);
+        // 新页还没有放入缓存，不会有竞争，加锁只是遵守修改页的约定
+        page.lock();
+        try {
+            page.setDirty(true);
+        } finally {
+            page.unlock();
+        }
+        if (offer(pageNo, page, () -> true)) {
+            addDirty(page);
+            return;
+        }
+
+        Page cached = null;
+        try {
+            cached = get(pageNo);
+        } catch (Exception e) {
+            write(page);
+        }
+        if (cached != null) {
+            cached.lock();
+            try {
+                cached.getBuffer().duplicate().put(frame.duplicate());
+                cached.setDirty(true);
+            } finally {
+                cached.unlock();
+            }
+            release(cached);
+        }
+        releaseFrame(frame);
+    }
+
+    /**
+     * 登记已释放的脏页，同一页号重复登记只计数一次
+     */
+    private void addDirty(Page page) {
+        if (dirtyPages.put(page.getPageNumber(), page) == null) {
+            dirtyCount.incrementAndGet();
+        }
+        writer.dirtied();
+    }
+
+    private void removeDirty(Page page) {
+        if (dirtyPages.remove(page.getPageNumber(), page)) {
+            dirtyCount.decrementAndGet();
+        }
     }
 
     private void flush(Page page) {
+        write(page);
+        sync();
+    }
+
+    private void write(Page page) {
         int pageNo = page.getPageNumber();
         long offset = pageOffset(pageNo);
 
-        fileLock.lock();
+        flushLog(page.getLSN());
+        try {
+            ensureRecorded(pageNo);
+            pageFile.write(offset, page.getBuffer().duplicate());
+            unsynced.set(true);
+            pagesWritten.increment();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 写回页之前，把日志持久化到页的LSN
+     *
+     * @param lsn 页的LSN
+     */
+    private void flushLog(long lsn) {
+        Logger logger = this.logger;
+        if (logger != null && lsn > 0) {
+            logger.flushUpTo(lsn);
+        }
+    }
+
+    /**
+     * 写入页之前保证它的页号在布局文件记录的页数之内，超出时记录当前页数并fsync
+     *
+     * @param pageNo 将要写入的最大页号
+     */
+    private void ensureRecorded(int pageNo) throws IOException {
+        if (layout == null || pageNo <= recordedPages) {
+            return;
+        }
+        layoutLock.lock();
+        try {
+            if (pageNo > recordedPages) {
+                recordPageCount(Math.max(pageNo, pageNumbers.get()));
+            }
+        } finally {
+            layoutLock.unlock();
+        }
+    }
+
+    /**
+     * 把页数写入布局文件并fsync
+     *
+     * @param pages 页数
+     */
+    private void recordPageCount(int pages) throws IOException {
+        if (layout == null) {
+            return;
+        }
+        layoutLock.lock();
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(LAYOUT_SIZE);
+            buf.putInt(0, layoutFiles);
+            buf.putInt(4, layoutStripePages);
+            buf.putInt(OFFSET_PAGE_COUNT, pages);
+            FileChannel channel = layout.getChannel();
+            while (buf.hasRemaining()) {
+                channel.write(buf, buf.position());
+            }
+            channel.force(true);
+            recordedPages = pages;
+        } finally {
+            layoutLock.unlock();
+        }
+    }
+
+    private int readPageCount() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(LAYOUT_SIZE);
+        FileChannel channel = layout.getChannel();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, buf.position()) < 0) {
+                Panic.panic(Error.BadLayoutException);
+            }
+        }
+        int pages = buf.getInt(OFFSET_PAGE_COUNT);
+        if (pages < 0) {
+            Panic.panic(Error.BadLayoutException);
+        }
+        return pages;
+    }
+
+    private void sync() {
+        syncLock.lock();
+        try {
+            if (unsynced.getAndSet(false)) {
+                long start = System.nanoTime();
+                try {
+                    pageFile.force();
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+                fsyncLatency.recordSince(start);
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private ByteBuffer allocateFrame() {
+        return framePool != null ? framePool.allocate() : ByteBuffer.allocate(PAGE_SIZE);
+    }
+
+    private void releaseFrame(ByteBuffer frame) {
+        if (framePool != null) {
+            framePool.release(frame);
+        }
+    }
+
+    /**
+     * 访问到预读窗口的中点时预读下一个窗口
+     *
+     * @param pageNo 访问的页号
+     */
+    private void triggerReadAhead(int pageNo) {
+        if (!readAheadTriggers.isEmpty()) {
+            Integer next = readAheadTriggers.remove(pageNo);
+            if (next != null) {
+                readAhead(next);
+            }
+        }
+    }
+
+    /**
+     * 预读从from开始的一个窗口，并在窗口中点设置下一次预读的触发页
+     *
+     * @param from 起始页号
+     */
+    private void readAhead(int from) {
+        if (readAheadTriggers.size() >= MAX_READ_AHEAD_TRIGGERS) {
+            readAheadTriggers.clear();
+        }
+        readAheadTriggers.put(from + READ_AHEAD_PAGES / 2, from + READ_AHEAD_PAGES);
+        prefetch(from, READ_AHEAD_PAGES);
+    }
+
+    /**
+     * 将{@code from ~ to}中不在缓存中的页读入缓存，连续的页合并为一次读取
+     *
+     * @param from 起始页号
+     * @param to   结束页号
+     */
+    private void load(int from, int to) {
+        int pageNo = from;
+        while (pageNo <= to) {
+            if (contains(pageNo)) {
+                pageNo++;
+                continue;
+            }
+            int end = pageNo;
+            while (end < to && !contains(end + 1)) {
+                end++;
+            }
+            loadRun(pageNo, end - pageNo + 1);
+            pageNo = end + 1;
+        }
+    }
+
+    /**
+     * 读取连续的count个页，放入缓存但不增加引用，每次最多读取{@code batchPages}个页
+     *
+     * @param from  起始页号
+     * @param count 页数
+     */
+    private void loadRun(int from, int count) {
+        for (int i = 0; i < count; i += batchPages) {
+            readRun(from + i, Math.min(batchPages, count - i));
+        }
+    }
+
+    /**
+     * 一次读取连续的count个页，放入缓存但不增加引用
+     *
+     * @param from  起始页号
+     * @param count 页数
+     */
+    private void readRun(int from, int count) {
+        long[] versions = new long[count];
+        for (int i = 0; i < count; i++) {
+            versions[i] = evictVersions.get((from + i) % EVICT_VERSION_STRIPES);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(Math.toIntExact((long) count * PAGE_SIZE));
+        try {
+            pageFile.read(pageOffset(from), buf);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        pagesRead.add(count);
+        for (int i = 0; i < count; i++) {
+            int pageNo = from + i;
+            long version = versions[i];
+            buf.limit((i + 1) * PAGE_SIZE);
+            buf.position(i * PAGE_SIZE);
+            ByteBuffer frame = allocateFrame();
+            frame.duplicate().put(buf);
+            boolean offered = offer(pageNo, new PageImpl(pageNo, frame, this),
+                    () -> evictVersions.get(pageNo % EVICT_VERSION_STRIPES) == version);
+            if (!offered) {
+                releaseFrame(frame);
+            }
+        }
+    }
+
+    private static void collect(Map<Integer, Page> pages, List<Integer> pageNos, int maxPages) {
+        for (Integer pageNo : pages.keySet()) {
+            if (pageNos.size() >= maxPages) {
+                return;
+            }
+            pageNos.add(pageNo);
+        }
+    }
+
+    /**
+     * 写回有序、无重复的页号对应的页，每批最多{@code batchPages}个页，
+     * 各批之间串行，同一个页的多次写回不会乱序落盘
+     * <p>每批在writeBackLock内获取页的共享锁，持有页锁的线程在这里等待writeBackLock可能与写回线程互相等待，
+     * 页锁也不可重入，所以持有页锁时拒绝写回</p>
+     *
+     * @param pageNos 有序页号
+     */
+    private void writeBack(List<Integer> pageNos) {
+        if (PageImpl.holdsAnyLatch()) {
+            throw new IllegalStateException("cannot write back pages while holding a page latch");
+        }
+        for (int from = 0; from < pageNos.size(); from += batchPages) {
+            int to = Math.min(pageNos.size(), from + batchPages);
+            writeBackLock.lock();
+            try {
+                writeBatch(pageNos.subList(from, to));
+            } finally {
+                writeBackLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 写回期间持有页的引用防止被淘汰，在共享锁内复制数据并清除脏标记，不阻塞其他读者，
+     * 相邻页合并为一次写入，写入之前把日志持久化到整批页中最大的LSN
+     *
+     * @param pageNos 有序页号
+     */
+    private void writeBatch(List<Integer> pageNos) {
+        ByteBuffer buf = ByteBuffer.allocate(pageNos.size() * PAGE_SIZE);
+        int[] pinned = new int[pageNos.size()];
+        long lsn = 0;
         try {
-            ByteBuffer buf = ByteBuffer.wrap(page.getData());
-            fileChannel.position(offset);
-            fileChannel.write(buf);
-            fileChannel.force(false);
+            for (int i = 0; i < pageNos.size(); i++) {
+                int pageNo = pageNos.get(i);
+                Page page = getIfCached(pageNo);
+                if (page == null) {
+                    // 已经被淘汰，淘汰时已经写回
+                    Page stale = dirtyPages.get(pageNo);
+                    if (stale != null && !stale.isDirty()) {
+                        removeDirty(stale);
+                    }
+                    continue;
+                }
+                pinned[i] = pageNo;
+                removeDirty(page);
+                // setDirty(true)和setLSN都在排他锁内标记脏页，共享锁内清除脏标记不会丢失修改
+                page.lockShared();
+                try {
+                    ByteBuffer slot = buf.duplicate();
+                    slot.position(i * PAGE_SIZE);
+                    slot.put(page.getBuffer().duplicate());
+                    page.setDirty(false);
+                    lsn = Math.max(lsn, page.getLSN());
+                } finally {
+                    page.unlockShared();
+                }
+            }
+
+            flushLog(lsn);
+            for (int i = pinned.length - 1; i >= 0; i--) {
+                if (pinned[i] != 0) {
+                    ensureRecorded(pinned[i]);
+                    break;
+                }
+            }
+            int start = 0;
+            for (int i = 0; i <= pinned.length; i++) {
+                if (i < pinned.length && pinned[i] != 0 && (i == start || pinned[i] == pinned[i - 1] + 1)) {
+                    continue;
+                }
+                if (i > start) {
+                    ByteBuffer run = buf.duplicate();
+                    run.limit(i * PAGE_SIZE);
+                    run.position(start * PAGE_SIZE);
+                    pageFile.write(pageOffset(pinned[start]), run);
+                    unsynced.set(true);
+                    pagesWritten.add(i - start);
+                }
+                start = (i < pinned.length && pinned[i] != 0) ? i : i + 1;
+            }
         } catch (IOException e) {
             Panic.panic(e);
         } finally {
-            fileLock.unlock();
+            for (int pageNo : pinned) {
+                if (pageNo != 0) {
+                    release(pageNo);
+                }
+            }
         }
     }
 
     private static long pageOffset(int pageNo) {
-        return (pageNo - 1) * PAGE_SIZE;
+        return (long) (pageNo - 1) * PAGE_SIZE;
+    }
+
+    /**
+     * 表空间的数据文件，第一个是{@code path + DB_SUFFIX}
+     */
+    static File[] dataFiles(String path, PageCacheOptions options) {
+        File[] files = new File[1 + options.extraFiles.length];
+        files[0] = new File(path + DB_SUFFIX);
+        for (int i = 0; i < options.extraFiles.length; i++) {
+            files[i + 1] = new File(options.extraFiles[i]);
+        }
+        return files;
+    }
+
+    /**
+     * 创建布局文件{@code path + LAYOUT_SUFFIX}，记录表空间的组成和已分配的页数：
+     * [FileCount 4] [StripePages 4] [PageCount 4]，
+     * 返回时已经持久化
+     */
+    static void createLayout(String path, PageCacheOptions options) {
+        File f = new File(path + LAYOUT_SUFFIX);
+        ByteBuffer layout = ByteBuffer.allocate(LAYOUT_SIZE);
+        layout.putInt(0, 1 + options.extraFiles.length);
+        layout.putInt(4, Math.max(1, options.stripePages));
+        try {
+            if (!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+            try (RandomAccessFile file = new RandomAccessFile(f, "rw")) {
+                file.getChannel().write(layout, 0);
+                file.getChannel().force(true);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 校验打开时的文件数和stripePages与创建时一致，不一致时页会读写到错误的文件和偏移
+     * <p>没有布局文件的表空间由单个文件组成，不能再指定{@link PageCacheOptions#extraFiles}；
+     * 空的布局文件是第一次记录页数之前崩溃留下的，与没有布局文件相同</p>
+     */
+    static void checkLayout(String path, PageCacheOptions options) {
+        File f = new File(path + LAYOUT_SUFFIX);
+        int files = 1;
+        int stripePages = Math.max(1, options.stripePages);
+        if (f.exists() && f.length() > 0) {
+            ByteBuffer layout = ByteBuffer.allocate(LEGACY_LAYOUT_SIZE);
+            try (RandomAccessFile file = new RandomAccessFile(f, "r")) {
+                if (file.length() != LAYOUT_SIZE && file.length() != LEGACY_LAYOUT_SIZE) {
+                    Panic.panic(Error.BadLayoutException);
+                }
+                FileChannel channel = file.getChannel();
+                while (layout.hasRemaining()) {
+                    if (channel.read(layout, layout.position()) < 0) {
+                        Panic.panic(Error.BadLayoutException);
+                    }
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            files = layout.getInt(0);
+            stripePages = layout.getInt(4);
+        }
+        // 单个文件时stripePages不影响页的位置
+        if (files != 1 + options.extraFiles.length
+                || files > 1 && stripePages != Math.max(1, options.stripePages)) {
+            Panic.panic(Error.BadLayoutException);
+        }
+    }
+
+    /**
+     * 打开数据文件，多个文件时组成{@link StripedPageFile}
+     */
+    static PageFile openPageFile(File[] files, PageCacheOptions options) {
+        PageFile[] members = new PageFile[files.length];
+        try {
+            for (int i = 0; i < files.length; i++) {
+                RandomAccessFile file = new RandomAccessFile(files[i], "rw");
+                FileChannel fileChannel = file.getChannel();
+                members[i] = options.mmap
+                        ? new MappedPageFile(file, fileChannel)
+                        : new ChannelPageFile(file, fileChannel);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return members.length == 1 ? members[0] : new StripedPageFile(members, Math.max(1, options.stripePages));
     }
 
 }
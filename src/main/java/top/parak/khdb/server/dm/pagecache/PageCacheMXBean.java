@@ -0,0 +1,46 @@
+package top.parak.khdb.server.dm.pagecache;
+
+/**
+ * 页缓存的JMX视图，每次读取属性时从{@link PageCache#getStats()}获取，延迟单位为微秒
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+public interface PageCacheMXBean {
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    double getMissLatencyMeanMicros();
+
+    long getMissLatencyP99Micros();
+
+    long getEvictions();
+
+    long getCacheFullCount();
+
+    long getPinned();
+
+    int getCachedPages();
+
+    int getCapacity();
+
+    int getDirtyPages();
+
+    int getPageNumber();
+
+    long getPagesRead();
+
+    long getPagesWritten();
+
+    long getFsyncCount();
+
+    double getFsyncLatencyMeanMicros();
+
+    long getFsyncLatencyP99Micros();
+
+}
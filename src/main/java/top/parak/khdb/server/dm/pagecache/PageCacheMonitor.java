@@ -0,0 +1,105 @@
+package top.parak.khdb.server.dm.pagecache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 注册到JMX的{@link PageCacheMXBean}实现
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+class PageCacheMonitor implements PageCacheMXBean {
+
+    private final PageCache pageCache;
+
+    PageCacheMonitor(PageCache pageCache) {
+        this.pageCache = pageCache;
+    }
+
+    @Override
+    public long getHits() {
+        return pageCache.getStats().getCache().getHits();
+    }
+
+    @Override
+    public long getMisses() {
+        return pageCache.getStats().getCache().getMisses();
+    }
+
+    @Override
+    public double getHitRatio() {
+        return pageCache.getStats().getCache().getHitRatio();
+    }
+
+    @Override
+    public double getMissLatencyMeanMicros() {
+        return pageCache.getStats().getCache().getMissLatency().getMeanNanos() / 1000;
+    }
+
+    @Override
+    public long getMissLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(pageCache.getStats().getCache().getMissLatency().getQuantileNanos(0.99));
+    }
+
+    @Override
+    public long getEvictions() {
+        return pageCache.getStats().getCache().getEvictions();
+    }
+
+    @Override
+    public long getCacheFullCount() {
+        return pageCache.getStats().getCache().getCacheFullCount();
+    }
+
+    @Override
+    public long getPinned() {
+        return pageCache.getStats().getCache().getPinned();
+    }
+
+    @Override
+    public int getCachedPages() {
+        return pageCache.getStats().getCache().getSize();
+    }
+
+    @Override
+    public int getCapacity() {
+        return pageCache.getStats().getCache().getCapacity();
+    }
+
+    @Override
+    public int getDirtyPages() {
+        return pageCache.getStats().getDirtyPages();
+    }
+
+    @Override
+    public int getPageNumber() {
+        return pageCache.getStats().getPageNumber();
+    }
+
+    @Override
+    public long getPagesRead() {
+        return pageCache.getStats().getPagesRead();
+    }
+
+    @Override
+    public long getPagesWritten() {
+        return pageCache.getStats().getPagesWritten();
+    }
+
+    @Override
+    public long getFsyncCount() {
+        return pageCache.getStats().getFsyncLatency().getCount();
+    }
+
+    @Override
+    public double getFsyncLatencyMeanMicros() {
+        return pageCache.getStats().getFsyncLatency().getMeanNanos() / 1000;
+    }
+
+    @Override
+    public long getFsyncLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(pageCache.getStats().getFsyncLatency().getQuantileNanos(0.99));
+    }
+
+}
@@ -0,0 +1,43 @@
+package top.parak.khdb.server.dm.pagecache;
+
+/**
+ * PageCache 打开选项
+ *
+ * @author KHighness
+ * @since 2022-07-02
+ * @email parakovo@gmail.com
+ */
+public class PageCacheOptions {
+
+    /**
+     * 使用内存映射读写数据文件，适合能全部放进内存的读多写少的数据集
+     */
+    public boolean mmap;
+
+    /**
+     * 打开时按缓存容量预先分配堆外页帧，缓存中的页不占用堆内存
+     */
+    public boolean offHeap;
+
+    /**
+     * 执行{@link PageCache#getPageAsync}和{@link PageCache#flushPageAsync}的I/O线程数
+     */
+    public int ioThreads = 4;
+
+    /**
+     * 数据文件每次扩展的页数，新页从已经扩展的区间中分配，不需要I/O
+     */
+    public int extentPages = 256;
+
+    /**
+     * 表空间中主文件之外的数据文件路径，可以位于不同的磁盘，页按{@link #stripePages}轮流分布；
+     * 打开时必须与创建时一致，文件数不一致时拒绝打开
+     */
+    public String[] extraFiles = new String[0];
+
+    /**
+     * 多个数据文件时，每个文件连续存放的页数，打开时与创建时不一致则拒绝打开
+     */
+    public int stripePages = 64;
+
+}
@@ -0,0 +1,68 @@
+package top.parak.khdb.server.dm.pagecache;
+
+import top.parak.khdb.server.common.CacheStats;
+import top.parak.khdb.server.common.LatencyHistogram;
+
+/**
+ * 页缓存统计的快照，计数从打开时开始累计，比较两次快照可以得到速率
+ *
+ * @author KHighness
+ * @since 2022-07-13
+ * @email parakovo@gmail.com
+ */
+public class PageCacheStats {
+
+    private final CacheStats cache;
+    private final int dirtyPages;
+    private final int pageNumber;
+    private final long pagesRead;
+    private final long pagesWritten;
+    private final LatencyHistogram.Snapshot fsyncLatency;
+
+    PageCacheStats(CacheStats cache, int dirtyPages, int pageNumber,
+                   long pagesRead, long pagesWritten, LatencyHistogram.Snapshot fsyncLatency) {
+        this.cache = cache;
+        this.dirtyPages = dirtyPages;
+        this.pageNumber = pageNumber;
+        this.pagesRead = pagesRead;
+        this.pagesWritten = pagesWritten;
+        this.fsyncLatency = fsyncLatency;
+    }
+
+    /**
+     * 命中、未命中、引用和淘汰
+     */
+    public CacheStats getCache() {
+        return cache;
+    }
+
+    /**
+     * 已释放、等待写回的脏页数
+     */
+    public int getDirtyPages() {
+        return dirtyPages;
+    }
+
+    public int getPageNumber() {
+        return pageNumber;
+    }
+
+    /**
+     * 从文件读取的页数，包括预读
+     */
+    public long getPagesRead() {
+        return pagesRead;
+    }
+
+    /**
+     * 写入文件的页数，包括新建页
+     */
+    public long getPagesWritten() {
+        return pagesWritten;
+    }
+
+    public LatencyHistogram.Snapshot getFsyncLatency() {
+        return fsyncLatency;
+    }
+
+}
@@ -0,0 +1,39 @@
+package top.parak.khdb.server.dm.pagecache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 数据文件的读写方式
+ *
+ * @author KHighness
+ * @since 2022-07-02
+ * @email parakovo@gmail.com
+ */
+interface PageFile {
+
+    /**
+     * 从offset处读满dst，超出文件末尾的部分保持原样
+     *
+     * @param offset 文件偏移
+     * @param dst    目标缓冲区
+     */
+    void read(long offset, ByteBuffer dst) throws IOException;
+
+    /**
+     * 将src写入offset处，必要时扩展文件
+     *
+     * @param offset 文件偏移
+     * @param src    源缓冲区
+     */
+    void write(long offset, ByteBuffer src) throws IOException;
+
+    void force() throws IOException;
+
+    long size() throws IOException;
+
+    void setLength(long size) throws IOException;
+
+    void close() throws IOException;
+
+}
@@ -0,0 +1,115 @@
+package top.parak.khdb.server.dm.pagecache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台脏页写回线程
+ * <p>按脏页比例调整节奏：</p>
+ * <ol>
+ * <li>低于{@code LOW_DIRTY_RATIO}：每{@code IDLE_INTERVAL}毫秒写回一批</li>
+ * <li>介于两者之间：每{@code BUSY_INTERVAL}毫秒写回一批</li>
+ * <li>高于{@code HIGH_DIRTY_RATIO}：连续写回，直到比例回落</li>
+ * </ol>
+ * <p>每批按页号顺序写回，相邻页合并为一次写入，整批只fsync一次</p>
+ *
+ * @author KHighness
+ * @since 2022-07-03
+ * @email parakovo@gmail.com
+ */
+class PageWriter implements Runnable {
+
+    static final double LOW_DIRTY_RATIO = 0.1;
+    static final double HIGH_DIRTY_RATIO = 0.5;
+    static final long IDLE_INTERVAL = 1000;
+    static final long BUSY_INTERVAL = 10;
+    static final int MAX_BATCH_PAGES = 256;
+
+    private final PageCacheImpl pageCache;
+    private final int maxResource;
+    private final Thread thread;
+    private final Lock lock;
+    private final Condition wakeUp;
+
+    private volatile boolean closed;
+
+    PageWriter(PageCacheImpl pageCache, int maxResource) {
+        this.pageCache = pageCache;
+        this.maxResource = maxResource;
+        this.lock = new ReentrantLock();
+        this.wakeUp = lock.newCondition();
+        this.thread = new Thread(this, "khdb-page-writer");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * 脏页比例过高时立即唤醒写回线程
+     */
+    void dirtied() {
+        if (dirtyRatio() >= HIGH_DIRTY_RATIO) {
+            lock.lock();
+            try {
+                wakeUp.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 不能中断写回线程，中断会关闭正在读写的FileChannel
+     */
+    void close() {
+        closed = true;
+        lock.lock();
+        try {
+            wakeUp.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            long interval = interval();
+            if (interval > 0) {
+                lock.lock();
+                try {
+                    wakeUp.await(interval, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    continue;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (!closed) {
+                pageCache.writeBack(MAX_BATCH_PAGES);
+            }
+        }
+    }
+
+    private long interval() {
+        double ratio = dirtyRatio();
+        if (ratio >= HIGH_DIRTY_RATIO) {
+            return 0;
+        }
+        return ratio >= LOW_DIRTY_RATIO ? BUSY_INTERVAL : IDLE_INTERVAL;
+    }
+
+    private double dirtyRatio() {
+        return (double) pageCache.getDirtyPageNumber() / maxResource;
+    }
+
+}
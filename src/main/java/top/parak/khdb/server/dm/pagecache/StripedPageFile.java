@@ -0,0 +1,117 @@
+package top.parak.khdb.server.dm.pagecache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 由多个数据文件组成的表空间，文件可以位于不同的磁盘
+ * <p>逻辑页按{@code stripePages}个一组轮流放在各个文件中：
+ * 第s组放在第{@code s % n}个文件，是该文件的第{@code s / n}组。
+ * 连续的读写按组的边界拆开，分别下发到对应的文件；
+ * {@code stripePages}足够大时相当于按页号区间划分</p>
+ * <p>文件数和{@code stripePages}在创建时记录在布局文件中，打开时不一致则拒绝；
+ * 文件顺序无法校验，打开时必须与创建时相同</p>
+ *
+ * @author KHighness
+ * @since 2022-07-14
+ * @email parakovo@gmail.com
+ */
+class StripedPageFile implements PageFile {
+
+    private final PageFile[] members;
+    private final long stripeSize;
+
+    StripedPageFile(PageFile[] members, int stripePages) {
+        this.members = members;
+        this.stripeSize = (long) stripePages * PageCache.PAGE_SIZE;
+    }
+
+    @Override
+    public void read(long offset, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            ByteBuffer part = part(offset, dst);
+            members[member(offset)].read(localOffset(offset), part);
+            offset += part.limit() - dst.position();
+            dst.position(part.limit());
+        }
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            ByteBuffer part = part(offset, src);
+            members[member(offset)].write(localOffset(offset), part);
+            offset += part.limit() - src.position();
+            src.position(part.limit());
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        for (PageFile member : members) {
+            member.force();
+        }
+    }
+
+    /**
+     * 各个文件最后一个字节对应的逻辑偏移中的最大值
+     */
+    @Override
+    public long size() throws IOException {
+        long size = 0;
+        for (int i = 0; i < members.length; i++) {
+            long local = members[i].size();
+            if (local == 0) {
+                continue;
+            }
+            long last = local - 1;
+            long stripe = last / stripeSize * members.length + i;
+            size = Math.max(size, stripe * stripeSize + last % stripeSize + 1);
+        }
+        return size;
+    }
+
+    @Override
+    public void setLength(long size) throws IOException {
+        long round = stripeSize * members.length;
+        for (int i = 0; i < members.length; i++) {
+            long rest = size % round - i * stripeSize;
+            long local = size / round * stripeSize + Math.max(0, Math.min(stripeSize, rest));
+            members[i].setLength(local);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (PageFile member : members) {
+            try {
+                member.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private int member(long offset) {
+        return (int) (offset / stripeSize % members.length);
+    }
+
+    private long localOffset(long offset) {
+        return offset / stripeSize / members.length * stripeSize + offset % stripeSize;
+    }
+
+    /**
+     * buf中从offset开始、不跨过所在组边界的部分
+     */
+    private ByteBuffer part(long offset, ByteBuffer buf) {
+        long left = stripeSize - offset % stripeSize;
+        ByteBuffer part = buf.duplicate();
+        part.limit(part.position() + (int) Math.min(buf.remaining(), left));
+        return part;
+    }
+
+}
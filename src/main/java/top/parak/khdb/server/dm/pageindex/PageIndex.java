@@ -1,11 +1,33 @@
 package top.parak.khdb.server.dm.pageindex;
 
+import top.parak.khdb.common.Panic;
+import top.parak.khdb.server.dm.page.Page;
+import top.parak.khdb.server.dm.page.PageX;
 import top.parak.khdb.server.dm.pagecache.PageCache;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * 页空闲空间索引
+ * <p>将页的空闲空间按{@code THRESHOLD}划分为{@code INTERVALS_NO + 1}个区间，
+ * 每个区间是一个无锁队列，不同区间的插入和选择互不阻塞</p>
+ * <ol>
+ * <li>select：从能满足所需空间的最小区间开始，通过非空区间位图直接定位，被选中的页从索引中移除；
+ * 最高的区间没有下一个区间，其中的页不一定满足，取出之前检查空闲空间</li>
+ * <li>add：页使用完后，按新的空闲空间重新加入索引，页号和空闲空间超出范围时抛出{@link IllegalArgumentException}</li>
+ * <li>同一个区间内优先选择已经在缓存中的页，最多检查{@code CACHED_SCAN_LIMIT}个</li>
+ * <li>rebuild：启动时并行扫描所有普通页，每个任务顺序读取{@code SCAN_CHUNK_PAGES}个页，
+ * 直接解析FSO，不经过缓存，缓存中的页以缓存为准；
+ * 崩溃后文件中间可能有没有初始化过的全0页，按空页加入索引，插入时重新初始化FSO</li>
+ * </ol>
+ *
  * @author KHighness
  * @since 2022-06-29
  * @email parakovo@gmail.com
@@ -14,10 +36,188 @@ public class PageIndex {
 
     private static final int INTERVALS_NO = 40;
     private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
+    private static final int CACHED_SCAN_LIMIT = 8;
+    private static final int SCAN_CHUNK_PAGES = 256;
 
-    private Lock lock;
-    private List<PageInfo>[] lists;
+    private final PageCache pageCache;
+    private final List<ConcurrentLinkedDeque<PageInfo>> lists;
+    /**
+     * 第i位为1代表第i个区间可能非空
+     */
+    private final AtomicLong nonEmpty;
 
+    public PageIndex() {
+        this(null);
+    }
 
+    public PageIndex(PageCache pageCache) {
+        this.pageCache = pageCache;
+        this.lists = new ArrayList<>(INTERVALS_NO + 1);
+        for (int i = 0; i <= INTERVALS_NO; i++) {
+            lists.add(new ConcurrentLinkedDeque<>());
+        }
+        this.nonEmpty = new AtomicLong(0);
+    }
+
+    /**
+     * 将页加入索引
+     *
+     * @param pageNo    页号，不小于1；设置了页缓存时不超过最大页号
+     * @param freeSpace 空闲空间大小，{@code 0 ~ PageX.MAX_FREE_SPACE}
+     */
+    public void add(int pageNo, int freeSpace) {
+        if (pageNo < 1 || pageCache != null && pageNo > pageCache.getPageNumber()) {
+            throw new IllegalArgumentException("pageNo: " + pageNo);
+        }
+        if (freeSpace < 0 || freeSpace > PageX.MAX_FREE_SPACE) {
+            throw new IllegalArgumentException("freeSpace: " + freeSpace);
+        }
+        int number = freeSpace / THRESHOLD;
+        lists.get(number).addLast(new PageInfo(pageNo, freeSpace));
+        setNonEmpty(number);
+    }
+
+    /**
+     * 选择一个空闲空间不小于spaceSize的页，并从索引中移除
+     *
+     * @param spaceSize 所需空间大小
+     * @return 页信息，null代表没有合适的页
+     */
+    public PageInfo select(int spaceSize) {
+        if (spaceSize > PageX.MAX_FREE_SPACE) {
+            return null;
+        }
+        int number = Math.max(0, spaceSize) / THRESHOLD;
+        // 同一个区间内的页不一定满足，从下一个区间开始
+        if (number < INTERVALS_NO) {
+            number++;
+        }
+        while (number <= INTERVALS_NO) {
+            long mask = nonEmpty.get() >>> number << number;
+            if (mask == 0) {
+                return null;
+            }
+            number = Long.numberOfTrailingZeros(mask);
+            PageInfo info = poll(lists.get(number), number == INTERVALS_NO ? spaceSize : 0);
+            if (info != null) {
+                return info;
+            }
+            clearNonEmpty(number);
+            number++;
+        }
+        return null;
+    }
+
+    /**
+     * 扫描第2页到最后一页，重建索引
+     */
+    public void rebuild() {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new RebuildTask(2, pageCache.getPageNumber()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 从区间中取出一个空闲空间不小于spaceSize的页，优先选择已经在缓存中的页
+     *
+     * @param spaceSize 所需空间大小，只有最高的区间需要检查，其他区间传0
+     */
+    private PageInfo poll(ConcurrentLinkedDeque<PageInfo> list, int spaceSize) {
+        if (pageCache != null) {
+            Iterator<PageInfo> it = list.iterator();
+            for (int i = 0; i < CACHED_SCAN_LIMIT && it.hasNext(); i++) {
+                PageInfo info = it.next();
+                if (info.freeSpace >= spaceSize && pageCache.isCached(info.pageNo) && list.removeFirstOccurrence(info)) {
+                    return info;
+                }
+            }
+        }
+        if (spaceSize == 0) {
+            return list.pollFirst();
+        }
+        for (PageInfo info : list) {
+            if (info.freeSpace >= spaceSize && list.removeFirstOccurrence(info)) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 读取{@code from ~ to}的页，将空闲空间加入索引
+     */
+    private void scan(int from, int to) {
+        ByteBuffer raw = ByteBuffer.allocate((to - from + 1) * PageCache.PAGE_SIZE);
+        pageCache.readPages(from, raw);
+        for (int pageNo = from; pageNo <= to; pageNo++) {
+            if (pageCache.isCached(pageNo)) {
+                try {
+                    Page page = pageCache.getPage(pageNo);
+                    add(pageNo, PageX.getFreeSpace(page));
+                    page.release();
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+            } else {
+                add(pageNo, PageX.getFreeSpace(raw, (pageNo - from) * PageCache.PAGE_SIZE));
+            }
+        }
+    }
+
+    private void setNonEmpty(int number) {
+        long bit = 1L << number;
+        while (true) {
+            long mask = nonEmpty.get();
+            if ((mask & bit) != 0 || nonEmpty.compareAndSet(mask, mask | bit)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 清除区间的非空标记，清除后再次检查，防止覆盖并发的add
+     */
+    private void clearNonEmpty(int number) {
+        long bit = 1L << number;
+        while (true) {
+            long mask = nonEmpty.get();
+            if ((mask & bit) == 0 || nonEmpty.compareAndSet(mask, mask & ~bit)) {
+                break;
+            }
+        }
+        if (!lists.get(number).isEmpty()) {
+            setNonEmpty(number);
+        }
+    }
+
+    private class RebuildTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        RebuildTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (from > to) {
+                return;
+            }
+            if (to - from < SCAN_CHUNK_PAGES) {
+                scan(from, to);
+                return;
+            }
+            int mid = from + ((to - from) / SCAN_CHUNK_PAGES / 2 + 1) * SCAN_CHUNK_PAGES - 1;
+            invokeAll(new RebuildTask(from, mid), new RebuildTask(mid + 1, to));
+        }
+
+    }
 
 }
@@ -1,12 +1,20 @@
 package top.parak.khdb.server.dm.pageindex;
 
-import top.parak.khdb.server.dm.pagecache.PageCache;
-
 /**
+ * 页的空闲空间信息
+ *
  * @author KHighness
  * @since 2022-06-29
  * @email parakovo@gmail.com
  */
 public class PageInfo {
 
+    public int pageNo;
+    public int freeSpace;
+
+    public PageInfo(int pageNo, int freeSpace) {
+        this.pageNo = pageNo;
+        this.freeSpace = freeSpace;
+    }
+
 }
@@ -0,0 +1,211 @@
+package top.parak.khdb.toolkit;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 二进制编解码
+ * <p>直接在{@code byte[]}或{@link ByteBuffer}的指定位置按大端序读写基本类型，不分配对象，
+ * 也不改变ByteBuffer的position；字符串格式为[Length 4] [UTF-8]，Length是UTF-8字节数</p>
+ *
+ * @author KHighness
+ * @since 2022-07-12
+ * @email parakovo@gmail.com
+ */
+public class Codec {
+
+    public static void putShort(byte[] buf, int offset, short value) {
+        buf[offset] = (byte) (value >>> 8);
+        buf[offset + 1] = (byte) value;
+    }
+
+    public static short getShort(byte[] buf, int offset) {
+        return (short) ((buf[offset] & 0xff) << 8 | (buf[offset + 1] & 0xff));
+    }
+
+    public static void putInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    public static int getInt(byte[] buf, int offset) {
+        return (buf[offset] & 0xff) << 24
+                | (buf[offset + 1] & 0xff) << 16
+                | (buf[offset + 2] & 0xff) << 8
+                | (buf[offset + 3] & 0xff);
+    }
+
+    public static void putLong(byte[] buf, int offset, long value) {
+        putInt(buf, offset, (int) (value >>> 32));
+        putInt(buf, offset + 4, (int) value);
+    }
+
+    public static long getLong(byte[] buf, int offset) {
+        return (long) getInt(buf, offset) << 32 | (getInt(buf, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    public static void putShort(ByteBuffer buf, int offset, short value) {
+        buf.putShort(offset, value);
+    }
+
+    public static short getShort(ByteBuffer buf, int offset) {
+        return buf.getShort(offset);
+    }
+
+    public static void putInt(ByteBuffer buf, int offset, int value) {
+        buf.putInt(offset, value);
+    }
+
+    public static int getInt(ByteBuffer buf, int offset) {
+        return buf.getInt(offset);
+    }
+
+    public static void putLong(ByteBuffer buf, int offset, long value) {
+        buf.putLong(offset, value);
+    }
+
+    public static long getLong(ByteBuffer buf, int offset) {
+        return buf.getLong(offset);
+    }
+
+    /**
+     * 将src[from, from + length)写入buf的offset位置
+     */
+    public static void putBytes(ByteBuffer buf, int offset, byte[] src, int from, int length) {
+        if (buf.hasArray()) {
+            System.arraycopy(src, from, buf.array(), buf.arrayOffset() + offset, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            buf.put(offset + i, src[from + i]);
+        }
+    }
+
+    /**
+     * 将buf从offset开始的length个字节读入dst的from位置
+     */
+    public static void getBytes(ByteBuffer buf, int offset, byte[] dst, int from, int length) {
+        if (buf.hasArray()) {
+            System.arraycopy(buf.array(), buf.arrayOffset() + offset, dst, from, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            dst[from + i] = buf.get(offset + i);
+        }
+    }
+
+    /**
+     * 字符串编码后的UTF-8字节数，不包括Length
+     */
+    public static int utf8Length(String str) {
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (isSurrogatePair(str, i)) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 在offset位置写入字符串
+     *
+     * @return 写入的字节数，包括Length
+     */
+    public static int putString(byte[] buf, int offset, String str) {
+        int pos = offset + 4;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | c >>> 6);
+                buf[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (isSurrogatePair(str, i)) {
+                int cp = Character.toCodePoint(c, str.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | cp >>> 18);
+                buf[pos++] = (byte) (0x80 | cp >>> 12 & 0x3F);
+                buf[pos++] = (byte) (0x80 | cp >>> 6 & 0x3F);
+                buf[pos++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                // 不成对的代理字符，与String.getBytes一样替换为'?'
+                buf[pos++] = '?';
+            } else {
+                buf[pos++] = (byte) (0xE0 | c >>> 12);
+                buf[pos++] = (byte) (0x80 | c >>> 6 & 0x3F);
+                buf[pos++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        putInt(buf, offset, pos - offset - 4);
+        return pos - offset;
+    }
+
+    /**
+     * 在offset位置写入字符串
+     *
+     * @return 写入的字节数，包括Length
+     */
+    public static int putString(ByteBuffer buf, int offset, String str) {
+        if (buf.hasArray()) {
+            return putString(buf.array(), buf.arrayOffset() + offset, str);
+        }
+        // 堆外缓冲区按绝对位置逐字节写入，不分配临时数组
+        int pos = offset + 4;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                buf.put(pos++, (byte) c);
+            } else if (c < 0x800) {
+                buf.put(pos++, (byte) (0xC0 | c >>> 6));
+                buf.put(pos++, (byte) (0x80 | c & 0x3F));
+            } else if (isSurrogatePair(str, i)) {
+                int cp = Character.toCodePoint(c, str.charAt(++i));
+                buf.put(pos++, (byte) (0xF0 | cp >>> 18));
+                buf.put(pos++, (byte) (0x80 | cp >>> 12 & 0x3F));
+                buf.put(pos++, (byte) (0x80 | cp >>> 6 & 0x3F));
+                buf.put(pos++, (byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf.put(pos++, (byte) '?');
+            } else {
+                buf.put(pos++, (byte) (0xE0 | c >>> 12));
+                buf.put(pos++, (byte) (0x80 | c >>> 6 & 0x3F));
+                buf.put(pos++, (byte) (0x80 | c & 0x3F));
+            }
+        }
+        buf.putInt(offset, pos - offset - 4);
+        return pos - offset;
+    }
+
+    public static String getString(byte[] buf, int offset) {
+        return new String(buf, offset + 4, getInt(buf, offset), StandardCharsets.UTF_8);
+    }
+
+    public static String getString(ByteBuffer buf, int offset) {
+        if (buf.hasArray()) {
+            return getString(buf.array(), buf.arrayOffset() + offset);
+        }
+        ByteBuffer raw = buf.duplicate();
+        raw.limit(offset + 4 + buf.getInt(offset));
+        raw.position(offset + 4);
+        return StandardCharsets.UTF_8.decode(raw).toString();
+    }
+
+    private static boolean isSurrogatePair(String str, int i) {
+        return Character.isHighSurrogate(str.charAt(i))
+                && i + 1 < str.length()
+                && Character.isLowSurrogate(str.charAt(i + 1));
+    }
+
+}
@@ -1,10 +1,5 @@
 package top.parak.khdb.toolkit;
 
-import com.google.common.primitives.Bytes;
-
-import java.nio.ByteBuffer;
-import java.util.Arrays;
-
 /**
  * @author KHighness
  * @since 2022-06-29
@@ -13,41 +8,43 @@ import java.util.Arrays;
 public class Parser {
 
     public static byte[] short2Byte(short value) {
-        return ByteBuffer.allocate(Short.SIZE / Byte.SIZE).putShort(value).array();
+        byte[] buf = new byte[Short.SIZE / Byte.SIZE];
+        Codec.putShort(buf, 0, value);
+        return buf;
     }
 
     public static short parseShort(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 2);
-        return buffer.getShort();
+        return Codec.getShort(buf, 0);
     }
 
     public static byte[] int2Byte(int value) {
-        return ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(value).array();
+        byte[] buf = new byte[Integer.SIZE / Byte.SIZE];
+        Codec.putInt(buf, 0, value);
+        return buf;
     }
 
     public static int parseInt(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 4);
-        return buffer.getInt();
+        return Codec.getInt(buf, 0);
     }
 
     public static byte[] long2Byte(long value) {
-        return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
+        byte[] buf = new byte[Long.SIZE / Byte.SIZE];
+        Codec.putLong(buf, 0, value);
+        return buf;
     }
 
     public static long parseLong(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 8);
-        return buffer.getLong();
+        return Codec.getLong(buf, 0);
     }
 
     public static byte[] string2Byte(String str) {
-        byte[] l = int2Byte(str.length());
-        return Bytes.concat(l, str.getBytes());
+        byte[] raw = new byte[4 + Codec.utf8Length(str)];
+        Codec.putString(raw, 0, str);
+        return raw;
     }
 
     public static ParseStringRes parseString(byte[] raw) {
-        int length = parseInt(Arrays.copyOf(raw, 4));
-        String str = new String(Arrays.copyOfRange(raw, 4, 4 + length));
-        return new ParseStringRes(str, length + 4);
+        return new ParseStringRes(Codec.getString(raw, 0), 4 + Codec.getInt(raw, 0));
     }
 
     public static long str2Uid(String key) {
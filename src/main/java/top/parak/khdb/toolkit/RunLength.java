@@ -0,0 +1,190 @@
+package top.parak.khdb.toolkit;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * 游程编码
+ * <p>编码结果是若干个段，每段以varint编码的头部开始，头部为{@code (length << 2) | kind}：</p>
+ * <ol>
+ * <li>ZERO：length个0，没有数据</li>
+ * <li>REPEAT：length个相同的字节，数据为这个字节</li>
+ * <li>LITERAL：length个原样保存的字节</li>
+ * </ol>
+ * <p>对新旧数据的异或差量编码时，未修改的字节都是ZERO段，重做时直接跳过</p>
+ *
+ * @author KHighness
+ * @since 2022-07-11
+ * @email parakovo@gmail.com
+ */
+public class RunLength {
+
+    private static final int KIND_ZERO = 0;
+    private static final int KIND_REPEAT = 1;
+    private static final int KIND_LITERAL = 2;
+    /**
+     * 至少连续这么多个相同的字节才单独成段
+     */
+    private static final int MIN_RUN = 3;
+
+    /**
+     * 编码raw
+     */
+    public static void encode(ByteArrayOutputStream out, byte[] raw) {
+        encode(out, raw, 0, raw.length);
+    }
+
+    /**
+     * 编码oldRaw和newRaw的异或差量，两者等长
+     */
+    public static void encodeXor(ByteArrayOutputStream out, byte[] oldRaw, byte[] newRaw) {
+        byte[] delta = new byte[newRaw.length];
+        for (int i = 0; i < delta.length; i++) {
+            delta[i] = (byte) (oldRaw[i] ^ newRaw[i]);
+        }
+        encode(out, delta, 0, delta.length);
+    }
+
+    /**
+     * 把src解码写入dst的offset位置，不改变dst的position
+     *
+     * @param src 编码数据，读取到末尾
+     * @param dst 目标
+     * @param offset 写入位置
+     * @return 解码后的长度
+     */
+    public static int decode(ByteBuffer src, ByteBuffer dst, int offset) {
+        int pos = offset;
+        while (src.hasRemaining()) {
+            long header = readVarint(src);
+            int length = checkLength(header >>> 2, dst, pos);
+            switch ((int) header & 3) {
+                case KIND_ZERO:
+                    fill(dst, pos, length, (byte) 0);
+                    break;
+                case KIND_REPEAT:
+                    fill(dst, pos, length, src.get());
+                    break;
+                default:
+                    for (int i = 0; i < length; i++) {
+                        dst.put(pos + i, src.get());
+                    }
+                    break;
+            }
+            pos += length;
+        }
+        return pos - offset;
+    }
+
+    /**
+     * 把src解码得到的异或差量作用到dst的offset位置，ZERO段直接跳过
+     *
+     * @param src 编码数据，读取到末尾
+     * @param dst 目标
+     * @param offset 写入位置
+     */
+    public static void decodeXor(ByteBuffer src, ByteBuffer dst, int offset) {
+        int pos = offset;
+        while (src.hasRemaining()) {
+            long header = readVarint(src);
+            int length = checkLength(header >>> 2, dst, pos);
+            switch ((int) header & 3) {
+                case KIND_ZERO:
+                    break;
+                case KIND_REPEAT:
+                    byte b = src.get();
+                    for (int i = pos; i < pos + length; i++) {
+                        dst.put(i, (byte) (dst.get(i) ^ b));
+                    }
+                    break;
+                default:
+                    for (int i = pos; i < pos + length; i++) {
+                        dst.put(i, (byte) (dst.get(i) ^ src.get()));
+                    }
+                    break;
+            }
+            pos += length;
+        }
+    }
+
+    /**
+     * 写入无符号varint，每字节7位，低位在前
+     */
+    public static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * 从src的position读取无符号varint
+     */
+    public static long readVarint(ByteBuffer src) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = src.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static void encode(ByteArrayOutputStream out, byte[] raw, int from, int to) {
+        int i = from;
+        while (i < to) {
+            int run = runLength(raw, i, to);
+            if (run >= MIN_RUN) {
+                if (raw[i] == 0) {
+                    writeVarint(out, (long) run << 2 | KIND_ZERO);
+                } else {
+                    writeVarint(out, (long) run << 2 | KIND_REPEAT);
+                    out.write(raw[i]);
+                }
+                i += run;
+                continue;
+            }
+
+            // 原样保存，直到下一个足够长的相同字节段
+            int j = i + run;
+            while (j < to) {
+                int next = runLength(raw, j, to);
+                if (next >= MIN_RUN) {
+                    break;
+                }
+                j += next;
+            }
+            writeVarint(out, (long) (j - i) << 2 | KIND_LITERAL);
+            out.write(raw, i, j - i);
+            i = j;
+        }
+    }
+
+    private static int runLength(byte[] raw, int from, int to) {
+        int i = from + 1;
+        while (i < to && raw[i] == raw[from]) {
+            i++;
+        }
+        return i - from;
+    }
+
+    /**
+     * 损坏的头部可能给出超出dst的长度，在写入之前拒绝
+     */
+    private static int checkLength(long length, ByteBuffer dst, int pos) {
+        if (length > dst.limit() - pos) {
+            throw new BufferOverflowException();
+        }
+        return (int) length;
+    }
+
+    private static void fill(ByteBuffer dst, int from, int length, byte b) {
+        for (int i = from; i < from + length; i++) {
+            dst.put(i, b);
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+package top.parak.khdb.server.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 并发获取、淘汰和释放：同一个key同时只有一份资源，被引用的资源不会被淘汰，淘汰写回的修改不会丢失
+ *
+ * @author KHighness
+ * @since 2022-07-14
+ * @email parakovo@gmail.com
+ */
+public class AbstractCacheTest {
+
+    private static final int CAPACITY = 16;
+    private static final int KEYS = 64;
+    private static final int THREADS = 8;
+    private static final int OPS = 20000;
+
+    private static class Resource {
+
+        final long key;
+        long value;
+        final AtomicInteger references = new AtomicInteger();
+
+        Resource(long key, long value) {
+            this.key = key;
+            this.value = value;
+        }
+
+    }
+
+    private static class TestCache extends AbstractCache<Resource> {
+
+        /**
+         * 模拟存储，淘汰时写回
+         */
+        final Map<Long, Long> store = new ConcurrentHashMap<>();
+        /**
+         * 当前在缓存中的资源
+         */
+        final Map<Long, Resource> live = new ConcurrentHashMap<>();
+        final AtomicInteger violations = new AtomicInteger();
+        final AtomicLong loads = new AtomicLong();
+
+        TestCache() {
+            super(CAPACITY);
+        }
+
+        @Override
+        protected Resource getForCache(long key) {
+            loads.incrementAndGet();
+            Resource resource = new Resource(key, store.getOrDefault(key, 0L));
+            if (live.putIfAbsent(key, resource) != null) {
+                // 上一份还没有写回就重新加载，会读到旧值
+                violations.incrementAndGet();
+            }
+            return resource;
+        }
+
+        @Override
+        protected void releaseForCache(Resource resource) {
+            if (resource.references.get() != 0) {
+                violations.incrementAndGet();
+            }
+            synchronized (resource) {
+                store.put(resource.key, resource.value);
+            }
+            if (!live.remove(resource.key, resource)) {
+                violations.incrementAndGet();
+            }
+        }
+
+    }
+
+    @Test
+    public void concurrentGetEvictRelease() throws Exception {
+        TestCache cache = new TestCache();
+        ExecutorService loaders = Executors.newFixedThreadPool(2);
+        ExecutorService workers = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(workers.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < OPS; i++) {
+                        long key = random.nextInt(KEYS);
+                        Resource resource = random.nextInt(4) == 0
+                                ? cache.getAsync(key, loaders).get(10, TimeUnit.SECONDS)
+                                : cache.get(key);
+                        resource.references.incrementAndGet();
+                        synchronized (resource) {
+                            resource.value++;
+                        }
+                        resource.references.decrementAndGet();
+                        cache.release(key);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            workers.shutdown();
+            loaders.shutdown();
+        }
+
+        CacheStats stats = cache.getCacheStats();
+        assertEquals(0, stats.getPinned());
+        assertTrue(stats.getEvictions() > 0);
+        cache.close();
+
+        assertEquals(0, cache.violations.get());
+        long total = 0;
+        for (long value : cache.store.values()) {
+            total += value;
+        }
+        assertEquals((long) THREADS * OPS, total);
+    }
+
+}
@@ -0,0 +1,184 @@
+package top.parak.khdb.server.dm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import top.parak.khdb.server.dm.logger.Logger;
+import top.parak.khdb.server.dm.logger.LoggerImpl;
+import top.parak.khdb.server.dm.logger.LoggerOptions;
+import top.parak.khdb.server.dm.page.Page;
+import top.parak.khdb.server.dm.page.PageX;
+import top.parak.khdb.server.dm.pagecache.PageCache;
+import top.parak.khdb.server.dm.pagecache.PageCacheImpl;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * 并行重做：文件中的页可能是任意一次写回的版本，重做之后都与崩溃前一致；重复恢复是幂等的
+ *
+ * @author KHighness
+ * @since 2022-07-14
+ * @email parakovo@gmail.com
+ */
+public class RecoverTest {
+
+    private static final int PAGES = 32;
+    private static final int MODIFIES = 400;
+    private static final long MEMORY = 64L * PageCache.PAGE_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(20220714);
+
+    /**
+     * 写回之后按检查点删除旧的日志段，剩下的日志从一段更新的中间开始，
+     * 重做时必须跳过已经在页中的修改，否则异或差量会被重复作用
+     */
+    @Test
+    public void parallelRedoIsIdempotent() throws Exception {
+        String path = new File(folder.getRoot(), "recover").getPath();
+        File db = new File(path + PageCacheImpl.DB_SUFFIX);
+        PageCache pc = PageCache.create(path, MEMORY);
+        pc.newPages(PAGES, PageX.initRaw());
+        pc.close();
+
+        // 日志不交给页缓存，关闭页缓存不会截去日志
+        Logger lg = Logger.create(path, logOptions());
+        pc = PageCache.open(path, MEMORY);
+        long checkpoint = modify(pc, lg);
+        lg.flushUpTo(checkpoint);
+        pc.close();
+        lg.truncateBefore(checkpoint);
+        assertFalse(new File(String.format("%s.%020d%s", path, 0, LoggerImpl.LOG_SUFFIX)).exists());
+        byte[][] middle = images(db);
+
+        pc = PageCache.open(path, MEMORY);
+        modify(pc, lg);
+        pc.close();
+        byte[][] late = images(db);
+
+        pc = PageCache.open(path, MEMORY);
+        modify(pc, lg);
+        byte[][] expected = new byte[PAGES + 1][];
+        for (int pgno = 1; pgno <= PAGES; pgno++) {
+            expected[pgno] = image(pc, pgno);
+        }
+        lg.flushUpTo(Long.MAX_VALUE);
+        pc.close();
+        lg.close();
+
+        // 每页随机保留检查点之后某一次写回的版本
+        try (RandomAccessFile raf = new RandomAccessFile(db, "rw")) {
+            for (int pgno = 1; pgno <= PAGES; pgno++) {
+                raf.seek((long) (pgno - 1) * PageCache.PAGE_SIZE);
+                raf.write(random.nextBoolean() ? middle[pgno] : late[pgno]);
+            }
+        }
+        recover(path, 4, expected);
+        // 所有页都已经重做过，再次恢复跳过全部日志
+        recover(path, 4, expected);
+
+        try (RandomAccessFile raf = new RandomAccessFile(db, "rw")) {
+            for (int pgno = 1; pgno <= PAGES; pgno += 2) {
+                raf.seek((long) (pgno - 1) * PageCache.PAGE_SIZE);
+                raf.write(middle[pgno]);
+            }
+        }
+        recover(path, 1, expected);
+    }
+
+    private static LoggerOptions logOptions() {
+        LoggerOptions options = new LoggerOptions();
+        options.segmentSize = 16 << 10;
+        return options;
+    }
+
+    private static void recover(String path, int workers, byte[][] expected) throws Exception {
+        PageCache pc = PageCache.open(path, MEMORY);
+        Logger lg = Logger.open(path, logOptions());
+        try {
+            Recover.recover(lg, pc, workers);
+            for (int pgno = 1; pgno <= PAGES; pgno++) {
+                assertArrayEquals("page " + pgno, expected[pgno], image(pc, pgno));
+            }
+        } finally {
+            lg.close();
+            pc.close();
+        }
+    }
+
+    /**
+     * 按约定修改页：持有排他锁，追加日志，修改页，记录LSN；页满之后改为更新
+     *
+     * @return 最后一条日志的LSN
+     */
+    private long modify(PageCache pc, Logger lg) throws Exception {
+        long last = 0;
+        for (int i = 0; i < MODIFIES; i++) {
+            int pgno = 1 + random.nextInt(PAGES);
+            byte[] raw = new byte[512 + random.nextInt(2048)];
+            random.nextBytes(raw);
+            // 部分数据与原数据相同，异或差量中出现ZERO段
+            Arrays.fill(raw, raw.length / 2, raw.length, (byte) 0);
+            Page page = pc.getPage(pgno);
+            try {
+                page.lock();
+                try {
+                    long lsn;
+                    if (PageX.getFreeSpace(page) >= raw.length) {
+                        lsn = lg.append(Recover.insertLog(i, pgno, PageX.getFSO(page), raw));
+                        PageX.insert(page, raw);
+                    } else {
+                        short offset = (short) (PageCache.PAGE_SIZE - PageX.MAX_FREE_SPACE
+                                + random.nextInt(PageX.MAX_FREE_SPACE - raw.length));
+                        byte[] old = page.getSubArray(offset, offset + raw.length).toArray();
+                        lsn = lg.append(Recover.updateLog(i, pgno, offset, old, raw));
+                        PageX.recoverUpdate(page, raw, offset);
+                    }
+                    PageX.setLSN(page, lsn);
+                    last = lsn;
+                } finally {
+                    page.unlock();
+                }
+            } finally {
+                page.release();
+            }
+        }
+        return last;
+    }
+
+    private static byte[][] images(File db) throws Exception {
+        byte[] raw = Files.readAllBytes(db.toPath());
+        byte[][] images = new byte[PAGES + 1][];
+        for (int pgno = 1; pgno <= PAGES; pgno++) {
+            int from = (pgno - 1) * PageCache.PAGE_SIZE;
+            images[pgno] = Arrays.copyOfRange(raw, from, from + PageCache.PAGE_SIZE);
+        }
+        return images;
+    }
+
+    private static byte[] image(PageCache pc, int pgno) throws Exception {
+        Page page = pc.getPage(pgno);
+        try {
+            page.lockShared();
+            try {
+                byte[] raw = new byte[PageCache.PAGE_SIZE];
+                page.getBuffer().duplicate().get(raw);
+                return raw;
+            } finally {
+                page.unlockShared();
+            }
+        } finally {
+            page.release();
+        }
+    }
+
+}
@@ -0,0 +1,292 @@
+package top.parak.khdb.server.dm.logger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 日志段的切换、重新打开、截断和旧版本日志的迁移
+ *
+ * @author KHighness
+ * @since 2022-07-14
+ * @email parakovo@gmail.com
+ */
+public class LoggerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path() {
+        return new File(folder.getRoot(), "log").getPath();
+    }
+
+    private static byte[] record(int i) {
+        byte[] data = new byte[16 + i];
+        Arrays.fill(data, (byte) i);
+        return data;
+    }
+
+    private static List<byte[]> readAll(Logger lg) {
+        List<byte[]> records = new ArrayList<>();
+        lg.rewind();
+        byte[] data;
+        while ((data = lg.next()) != null) {
+            records.add(data);
+        }
+        return records;
+    }
+
+    private static void assertRecords(Logger lg, int... expected) {
+        List<byte[]> records = readAll(lg);
+        assertEquals(expected.length, records.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(record(expected[i]), records.get(i));
+        }
+    }
+
+    private static LoggerOptions smallSegments() {
+        LoggerOptions options = new LoggerOptions();
+        options.segmentSize = 1 << 10;
+        return options;
+    }
+
+    private File[] segmentFiles() {
+        return folder.getRoot().listFiles((dir, name) -> name.startsWith("log.") && name.endsWith(LoggerImpl.LOG_SUFFIX));
+    }
+
+    /**
+     * 追加记录1 ~ n，每10条持久化一次，返回每条日志的LSN
+     */
+    private static long[] appendRecords(Logger lg, int n) {
+        long[] lsns = new long[n + 1];
+        for (int i = 1; i <= n; i++) {
+            lsns[i] = lg.append(record(i));
+            if (i % 10 == 0) {
+                lg.flushUpTo(lsns[i]);
+            }
+        }
+        lg.flushUpTo(lsns[n]);
+        return lsns;
+    }
+
+    private static int[] range(int from, int to) {
+        int[] range = new int[to - from + 1];
+        for (int i = from; i <= to; i++) {
+            range[i - from] = i;
+        }
+        return range;
+    }
+
+    /**
+     * 超过segmentSize切换到新段，重新打开后日志和LSN都不变，LSN跨段连续
+     */
+    @Test
+    public void rotateAndReopen() throws Exception {
+        String path = path();
+        Logger lg = Logger.create(path, smallSegments());
+        long[] lsns = appendRecords(lg, 100);
+        lg.close();
+
+        File[] files = segmentFiles();
+        assertTrue(files.length > 1);
+        for (File f : files) {
+            assertTrue(f.getName(), f.length() - LogSegment.HEADER_SIZE <= smallSegments().segmentSize);
+        }
+
+        Logger reopened = Logger.open(path, smallSegments());
+        try {
+            assertRecords(reopened, range(1, 100));
+            LogReader reader = reopened.reader();
+            for (int i = 1; i <= 100; i++) {
+                assertTrue(reader.next());
+                assertEquals(lsns[i], reader.lsn());
+            }
+            long lsn = reopened.log(record(101));
+            assertEquals(lsns[100] + 8 + record(101).length, lsn);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * truncateBefore只删除所有日志LSN都小于lsn的整段，LSN不小于lsn的日志都保留
+     */
+    @Test
+    public void truncateBeforeKeepsNeededSegments() throws Exception {
+        String path = path();
+        Logger lg = Logger.create(path, smallSegments());
+        long[] lsns = appendRecords(lg, 100);
+        int before = segmentFiles().length;
+        lg.truncateBefore(lsns[50]);
+        assertTrue(segmentFiles().length < before);
+
+        LogReader reader = lg.reader();
+        assertTrue(reader.next());
+        assertTrue(reader.lsn() <= lsns[50]);
+        long last = 0;
+        do {
+            last = reader.lsn();
+        } while (reader.next());
+        assertEquals(lsns[100], last);
+        lg.close();
+
+        Logger reopened = Logger.open(path, smallSegments());
+        try {
+            List<byte[]> records = readAll(reopened);
+            assertArrayEquals(record(100), records.get(records.size() - 1));
+            assertTrue(records.size() >= 51);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * truncate截去x之后的段和本段的尾部，之后的日志接在x之后
+     */
+    @Test
+    public void truncateAcrossSegments() throws Exception {
+        String path = path();
+        Logger lg = Logger.create(path, smallSegments());
+        long[] lsns = appendRecords(lg, 100);
+        int before = segmentFiles().length;
+        lg.truncate(lsns[30]);
+        assertTrue(segmentFiles().length < before);
+        assertEquals(lsns[30], lg.getFlushedLSN());
+        lg.log(record(7));
+        lg.close();
+
+        Logger reopened = Logger.open(path, smallSegments());
+        try {
+            int[] expected = Arrays.copyOf(range(1, 30), 31);
+            expected[30] = 7;
+            assertRecords(reopened, expected);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * 截断丢弃还没有持久化的日志，之后的追加从截断处开始
+     */
+    @Test
+    public void truncateDropsPending() throws Exception {
+        String path = path();
+        Logger lg = Logger.create(path);
+        lg.log(record(1));
+        long cut = lg.log(record(2));
+        lg.append(record(3));
+        lg.truncate(cut);
+        assertEquals(cut, lg.getFlushedLSN());
+        long lsn = lg.log(record(4));
+        assertEquals(cut + record(4).length + 8, lsn);
+        lg.close();
+
+        Logger reopened = Logger.open(path);
+        try {
+            assertRecords(reopened, 1, 2, 4);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * leader等待攒批期间截断，截断等这一批写完之后再截去，这一批不会写到截断处之后
+     */
+    @Test
+    public void truncateWaitsForCommit() throws Exception {
+        String path = path();
+        LoggerOptions options = new LoggerOptions();
+        options.maxWaitMicros = TimeUnit.MILLISECONDS.toMicros(200);
+        Logger lg = Logger.create(path, options);
+        lg.log(record(1));
+        long cut = lg.log(record(2));
+        long lsn = lg.append(record(3));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> leader = executor.submit(() -> lg.flushUpTo(lsn));
+            Thread.sleep(50);
+            lg.truncate(cut);
+            leader.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(cut, lg.getFlushedLSN());
+        lg.log(record(4));
+        lg.close();
+
+        Logger reopened = Logger.open(path, options);
+        try {
+            assertRecords(reopened, 1, 2, 4);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * 旧版本的单文件日志path.log：[XCheckSum] [Size CheckSum Data]...，
+     * 多项式校验和，种子13331，XCheckSum累计每条日志的所有字节
+     */
+    @Test
+    public void openLegacyLog() throws Exception {
+        String path = path();
+        byte[][] logs = {legacyLog(record(1)), legacyLog(record(2)), legacyLog(record(3))};
+        int xCheck = 0;
+        for (byte[] log : logs) {
+            xCheck = polynomial(xCheck, log);
+        }
+        try (FileOutputStream out = new FileOutputStream(path + LoggerImpl.LOG_SUFFIX)) {
+            out.write(ByteBuffer.allocate(4).putInt(xCheck).array());
+            for (byte[] log : logs) {
+                out.write(log);
+            }
+            // 崩溃时没有写完的日志
+            out.write(new byte[]{0, 0, 0, 64, 1, 2});
+        }
+
+        Logger lg = Logger.open(path);
+        assertFalse(new File(path + LoggerImpl.LOG_SUFFIX).exists());
+        assertTrue(new File(String.format("%s.%020d%s", path, 0, LoggerImpl.LOG_SUFFIX)).exists());
+        assertRecords(lg, 1, 2, 3);
+        lg.log(record(4));
+        lg.close();
+
+        Logger reopened = Logger.open(path);
+        try {
+            assertRecords(reopened, 1, 2, 3, 4);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private static byte[] legacyLog(byte[] data) {
+        return ByteBuffer.allocate(8 + data.length)
+                .putInt(data.length)
+                .putInt(polynomial(0, data))
+                .put(data)
+                .array();
+    }
+
+    private static int polynomial(int xCheck, byte[] buf) {
+        for (byte b : buf) {
+            xCheck = xCheck * 13331 + b;
+        }
+        return xCheck;
+    }
+
+}
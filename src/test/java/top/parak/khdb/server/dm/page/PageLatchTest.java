@@ -0,0 +1,179 @@
+package top.parak.khdb.server.dm.page;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import top.parak.khdb.server.dm.pagecache.PageCache;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 页锁的重入、修改方法的加锁约定和持有页锁时的写回
+ *
+ * @author KHighness
+ * @since 2022-07-14
+ * @email parakovo@gmail.com
+ */
+public class PageLatchTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Page newPage() {
+        return new PageImpl(1, PageX.initRaw(), null);
+    }
+
+    @Test
+    public void exclusiveIsReentrant() {
+        Page page = newPage();
+        page.lock();
+        page.lock();
+        page.lockShared();
+        assertTrue(page.isLockedByCurrentThread());
+        page.unlockShared();
+        page.unlock();
+        assertTrue(page.isLockedByCurrentThread());
+        page.unlock();
+        assertFalse(page.isLockedByCurrentThread());
+        assertFalse(PageImpl.holdsAnyLatch());
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void unlockWithoutLock() {
+        newPage().unlock();
+    }
+
+    @Test
+    public void mutatorsWithoutLatch() {
+        Page page = newPage();
+        short offset = PageX.insert(page, new byte[]{1, 2, 3});
+        PageX.recoverUpdate(page, new byte[]{4}, offset);
+        PageX.setLSN(page, 7);
+        assertTrue(page.isDirty());
+        assertEquals(7, PageX.getLSN(page));
+        assertEquals(offset + 3, PageX.getFSO(page));
+        assertFalse(page.isLockedByCurrentThread());
+        assertFalse(PageImpl.holdsAnyLatch());
+    }
+
+    @Test
+    public void mutatorsAndReadUnderLatch() {
+        Page page = newPage();
+        page.lock();
+        try {
+            short offset = PageX.insert(page, new byte[]{1, 2, 3});
+            assertEquals(offset + 3, page.read(PageX::getFSO));
+            assertTrue(page.isLockedByCurrentThread());
+        } finally {
+            page.unlock();
+        }
+        assertFalse(page.isLockedByCurrentThread());
+    }
+
+    @Test
+    public void latchBlocksOtherThreads() throws Exception {
+        Page page = newPage();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            page.lock();
+            long stamp = page.tryOptimisticRead();
+            Future<Short> insert;
+            try {
+                insert = executor.submit(() -> PageX.insert(page, new byte[]{9}));
+                try {
+                    insert.get(100, TimeUnit.MILLISECONDS);
+                    fail("insert must wait for the latch");
+                } catch (TimeoutException expected) {
+                    // 持有排他锁期间其他线程不能修改
+                }
+                assertFalse(page.validate(stamp));
+            } finally {
+                page.unlock();
+            }
+            insert.get(10, TimeUnit.SECONDS);
+
+            CountDownLatch locked = new CountDownLatch(1);
+            page.lockShared();
+            try {
+                Future<?> writer = executor.submit(() -> {
+                    page.lock();
+                    locked.countDown();
+                    page.unlock();
+                });
+                assertFalse(locked.await(100, TimeUnit.MILLISECONDS));
+                page.unlockShared();
+                writer.get(10, TimeUnit.SECONDS);
+            } finally {
+                if (locked.getCount() > 0) {
+                    page.unlockShared();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void optimisticReadFailsAfterWrite() {
+        Page page = newPage();
+        long stamp = page.tryOptimisticRead();
+        assertTrue(page.validate(stamp));
+        PageX.insert(page, new byte[]{1});
+        assertFalse(page.validate(stamp));
+    }
+
+    @Test
+    public void flushWhileLatched() throws Exception {
+        String path = new File(folder.getRoot(), "latch").getPath();
+        PageCache pc = PageCache.create(path, 16 * PageCache.PAGE_SIZE);
+        try {
+            int pgno = pc.newPage(PageX.initRaw());
+            Page page = pc.getPage(pgno);
+            try {
+                page.lock();
+                try {
+                    pc.flushPages(Collections.singletonList(page));
+                    fail("flushing while latched must be refused");
+                } catch (IllegalStateException expected) {
+                    // 写回需要页的共享锁，持有页锁时写回会死锁
+                } finally {
+                    page.unlock();
+                }
+                PageX.insert(page, new byte[]{5, 6});
+                page.setDirty(true);
+                pc.flushPages(Collections.singletonList(page));
+                assertFalse(page.isDirty());
+            } finally {
+                page.release();
+            }
+        } finally {
+            pc.close();
+        }
+        PageCache reopened = PageCache.open(path, 16 * PageCache.PAGE_SIZE);
+        try {
+            Page page = reopened.getPage(1);
+            try {
+                short fso = PageX.getFSO(page);
+                assertArrayEquals(new byte[]{5, 6}, page.getSubArray(fso - 2, fso).toArray());
+            } finally {
+                page.release();
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+
+}
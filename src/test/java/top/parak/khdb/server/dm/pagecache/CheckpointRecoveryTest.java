@@ -0,0 +1,331 @@
+package top.parak.khdb.server.dm.pagecache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import top.parak.khdb.server.dm.Recover;
+import top.parak.khdb.server.dm.logger.Logger;
+import top.parak.khdb.server.dm.logger.LoggerImpl;
+import top.parak.khdb.server.dm.logger.LoggerOptions;
+import top.parak.khdb.server.dm.page.Page;
+import top.parak.khdb.server.dm.page.PageX;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * 追加日志、修改页与检查点并发进行之后崩溃，重做恢复的页必须与崩溃前缓存中的页一致
+ *
+ * @author KHighness
+ * @since 2022-07-14
+ * @email parakovo@gmail.com
+ */
+public class CheckpointRecoveryTest {
+
+    private static final int PAGES = 64;
+    private static final int WORKERS = 4;
+    private static final int MODIFIES = 1000;
+    private static final long MEMORY = 16L * PageCache.PAGE_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 修改与检查点并发，检查点反复删除旧的日志段
+     */
+    @Test
+    public void recoverAfterCheckpoints() throws Exception {
+        String path = create();
+        CrashPageFile file = openPageFile(path);
+        PageCacheImpl pc = new PageCacheImpl(file, (int) (MEMORY / PageCache.PAGE_SIZE), new PageCacheOptions());
+        Logger lg = Logger.create(path, logOptions());
+        pc.setLogger(lg);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(WORKERS + 1);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < WORKERS; i++) {
+                long xid = i + 1;
+                workers.add(executor.submit(() -> {
+                    modify(pc, lg, xid);
+                    return null;
+                }));
+            }
+            Future<?> checkpoints = executor.submit(() -> {
+                while (running.get()) {
+                    pc.checkpoint();
+                }
+                return null;
+            });
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+            running.set(false);
+            checkpoints.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        crashAndRecover(path, file, pc, lg);
+        assertFalse("checkpoints must delete old segments",
+                new File(String.format("%s.%020d%s", path, 0, LoggerImpl.LOG_SUFFIX)).exists());
+    }
+
+    /**
+     * 检查点写回之后、计算recLSN之前有页变脏，它的日志持久化之后日志又越过了所在的段，
+     * recLSN必须是这条日志的LSN，而不是变脏时已经持久化的LSN
+     */
+    @Test
+    public void recoverPageDirtiedDuringCheckpoint() throws Exception {
+        String path = create();
+        CrashPageFile file = openPageFile(path);
+        PageCacheImpl pc = new PageCacheImpl(file, (int) (MEMORY / PageCache.PAGE_SIZE), new PageCacheOptions());
+        Logger lg = Logger.create(path, logOptions());
+        pc.setLogger(lg);
+
+        insert(pc, lg, 2, new byte[16]);
+        file.onWrite = () -> {
+            try {
+                Page page = pc.getPage(1);
+                try {
+                    page.lock();
+                    try {
+                        byte[] raw = {1, 2, 3, 4, 5, 6, 7, 8};
+                        long lsn = lg.append(Recover.insertLog(1, 1, PageX.getFSO(page), raw));
+                        lg.flushUpTo(lsn);
+                        PageX.insert(page, raw);
+                        // 其他页的日志使已持久化的LSN越过这条日志所在的段
+                        for (int i = 0; i < 2; i++) {
+                            byte[] other = new byte[3000];
+                            ThreadLocalRandom.current().nextBytes(other);
+                            lg.flushUpTo(insert(pc, lg, 3, other));
+                        }
+                        // 其他页被淘汰写回，不再限制检查点删除的日志；倒序访问不触发预读，预读的淘汰会写回页1
+                        for (int pgno = PAGES; pgno >= 4; pgno--) {
+                            pc.getPage(pgno).release();
+                        }
+                        PageX.setLSN(page, lsn);
+                    } finally {
+                        page.unlock();
+                    }
+                } finally {
+                    page.release();
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        pc.checkpoint();
+        file.crash();
+
+        crashAndRecover(path, file, pc, lg);
+    }
+
+    private String create() {
+        String path = new File(folder.getRoot(), "crash").getPath();
+        PageCache created = PageCache.create(path, MEMORY);
+        created.newPages(PAGES, PageX.initRaw());
+        created.close();
+        return path;
+    }
+
+    private static CrashPageFile openPageFile(String path) {
+        PageCacheOptions options = new PageCacheOptions();
+        return new CrashPageFile(PageCacheImpl.openPageFile(PageCacheImpl.dataFiles(path, options), options));
+    }
+
+    private static LoggerOptions logOptions() {
+        LoggerOptions options = new LoggerOptions();
+        options.segmentSize = 4 << 10;
+        return options;
+    }
+
+    /**
+     * 日志全部持久化之后崩溃，缓存中还没有写回的页丢失；恢复之后的页必须与崩溃前缓存中的页一致
+     */
+    private static void crashAndRecover(String path, CrashPageFile file, PageCache pc, Logger lg) throws Exception {
+        lg.flushUpTo(Long.MAX_VALUE);
+        file.crash();
+        byte[][] expected = new byte[PAGES + 1][];
+        for (int pgno = 1; pgno <= PAGES; pgno++) {
+            expected[pgno] = image(pc, pgno);
+        }
+        // 崩溃的进程不会执行关闭时的检查点，写回已经丢失，不能再删除日志
+        pc.setLogger(null);
+        pc.close();
+        lg.close();
+
+        PageCache reopened = PageCache.open(path, MEMORY);
+        Logger log = Logger.open(path, logOptions());
+        try {
+            Recover.recover(log, reopened, 3);
+            for (int pgno = 1; pgno <= PAGES; pgno++) {
+                assertArrayEquals("page " + pgno, expected[pgno], image(reopened, pgno));
+            }
+        } finally {
+            log.close();
+            reopened.close();
+        }
+    }
+
+    private static long insert(PageCache pc, Logger lg, int pgno, byte[] raw) throws Exception {
+        Page page = pc.getPage(pgno);
+        try {
+            page.lock();
+            try {
+                long lsn = lg.append(Recover.insertLog(0, pgno, PageX.getFSO(page), raw));
+                PageX.insert(page, raw);
+                PageX.setLSN(page, lsn);
+                return lsn;
+            } finally {
+                page.unlock();
+            }
+        } finally {
+            page.release();
+        }
+    }
+
+    /**
+     * 按约定修改页：持有排他锁，追加日志，修改页，记录LSN；页满之后改为更新
+     * <p>修改之前先持久化日志，检查点读取的LSN可能已经越过这条日志所在的段</p>
+     */
+    private static void modify(PageCache pc, Logger lg, long xid) throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < MODIFIES; i++) {
+            int pgno = 1 + random.nextInt(PAGES);
+            byte[] raw = new byte[64 + random.nextInt(1024)];
+            random.nextBytes(raw);
+            Page page = pc.getPage(pgno);
+            try {
+                page.lock();
+                try {
+                    if (PageX.getFreeSpace(page) >= raw.length) {
+                        long lsn = lg.append(Recover.insertLog(xid, pgno, PageX.getFSO(page), raw));
+                        lg.flushUpTo(lsn);
+                        PageX.insert(page, raw);
+                        PageX.setLSN(page, lsn);
+                    } else {
+                        short offset = (short) (PageCache.PAGE_SIZE - PageX.MAX_FREE_SPACE
+                                + random.nextInt(PageX.MAX_FREE_SPACE - raw.length));
+                        byte[] old = page.getSubArray(offset, offset + raw.length).toArray();
+                        long lsn = lg.append(Recover.updateLog(xid, pgno, offset, old, raw));
+                        lg.flushUpTo(lsn);
+                        PageX.recoverUpdate(page, raw, offset);
+                        PageX.setLSN(page, lsn);
+                    }
+                } finally {
+                    page.unlock();
+                }
+            } finally {
+                page.release();
+            }
+        }
+    }
+
+    private static byte[] image(PageCache pc, int pgno) throws Exception {
+        Page page = pc.getPage(pgno);
+        try {
+            page.lockShared();
+            try {
+                byte[] raw = new byte[PageCache.PAGE_SIZE];
+                page.getBuffer().duplicate().get(raw);
+                return raw;
+            } finally {
+                page.unlockShared();
+            }
+        } finally {
+            page.release();
+        }
+    }
+
+    /**
+     * 崩溃之后的写入只保留在内存中，可以读到但不会写入文件；onWrite在下一次写入之前执行一次
+     */
+    private static class CrashPageFile implements PageFile {
+
+        private final PageFile file;
+        private final Map<Long, byte[]> lost = new ConcurrentHashMap<>();
+        private volatile boolean crashed;
+        private volatile Runnable onWrite;
+
+        CrashPageFile(PageFile file) {
+            this.file = file;
+        }
+
+        void crash() {
+            crashed = true;
+        }
+
+        @Override
+        public void read(long offset, ByteBuffer dst) throws IOException {
+            int position = dst.position();
+            file.read(offset, dst);
+            for (int i = 0; position + i < dst.limit(); i += PageCache.PAGE_SIZE) {
+                byte[] page = lost.get(offset + i);
+                if (page != null) {
+                    ByteBuffer slot = dst.duplicate();
+                    slot.position(position + i);
+                    slot.put(page, 0, Math.min(page.length, slot.remaining()));
+                }
+            }
+        }
+
+        @Override
+        public void write(long offset, ByteBuffer src) throws IOException {
+            Runnable action = onWrite;
+            if (action != null) {
+                onWrite = null;
+                action.run();
+            }
+            if (!crashed) {
+                file.write(offset, src);
+                return;
+            }
+            for (long at = offset; src.hasRemaining(); at += PageCache.PAGE_SIZE) {
+                byte[] page = new byte[Math.min(PageCache.PAGE_SIZE, src.remaining())];
+                src.get(page);
+                lost.put(at, page);
+            }
+        }
+
+        @Override
+        public void force() throws IOException {
+            if (!crashed) {
+                file.force();
+            }
+        }
+
+        @Override
+        public long size() throws IOException {
+            return file.size();
+        }
+
+        @Override
+        public void setLength(long size) throws IOException {
+            if (!crashed) {
+                file.setLength(size);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,68 @@
+package top.parak.khdb.server.dm.pagecache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 映射期间缩小文件只缩小逻辑长度，关闭时才截断
+ *
+ * @author KHighness
+ * @since 2022-07-14
+ * @email parakovo@gmail.com
+ */
+public class MappedPageFileTest {
+
+    private static final int PAGE = PageCache.PAGE_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteBuffer page(int value) {
+        byte[] raw = new byte[PAGE];
+        Arrays.fill(raw, (byte) value);
+        return ByteBuffer.wrap(raw);
+    }
+
+    private static byte[] read(PageFile file, long offset) throws Exception {
+        ByteBuffer dst = ByteBuffer.allocate(PAGE);
+        file.read(offset, dst);
+        return Arrays.copyOf(dst.array(), dst.position());
+    }
+
+    @Test
+    public void shrinkKeepsMappingUntilClose() throws Exception {
+        File f = folder.newFile("mapped.db");
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        MappedPageFile file = new MappedPageFile(raf, raf.getChannel());
+        for (int i = 0; i < 4; i++) {
+            file.write((long) i * PAGE, page(i + 1));
+        }
+        file.setLength(2L * PAGE);
+        assertEquals(2L * PAGE, file.size());
+        assertEquals(4L * PAGE, f.length());
+        assertEquals(0, read(file, 2L * PAGE).length);
+        assertArrayEquals(page(2).array(), read(file, PAGE));
+
+        // 再次扩展后截去的部分读到0
+        file.setLength(3L * PAGE);
+        assertArrayEquals(new byte[PAGE], read(file, 2L * PAGE));
+        file.write(3L * PAGE, page(9));
+        assertEquals(4L * PAGE, file.size());
+        assertArrayEquals(page(9).array(), read(file, 3L * PAGE));
+
+        file.setLength(PAGE);
+        file.force();
+        file.close();
+        assertEquals(PAGE, f.length());
+    }
+
+}
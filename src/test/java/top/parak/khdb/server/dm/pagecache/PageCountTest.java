@@ -0,0 +1,93 @@
+package top.parak.khdb.server.dm.pagecache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 已分配页数的记录：全为0的页和预先扩展的区间都不影响重新打开后的页数
+ *
+ * @author KHighness
+ * @since 2022-07-14
+ * @email parakovo@gmail.com
+ */
+public class PageCountTest {
+
+    private static final long MEMORY = 16L * PageCache.PAGE_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path(String name) {
+        return new File(folder.getRoot(), name).getPath();
+    }
+
+    @Test
+    public void zeroPagesKeepTheirNumbers() {
+        String path = path("zero");
+        PageCache pc = PageCache.create(path, MEMORY);
+        assertEquals(1, pc.newPages(3, new byte[PageCache.PAGE_SIZE]));
+        pc.close();
+
+        PageCache reopened = PageCache.open(path, MEMORY);
+        try {
+            assertEquals(3, reopened.getPageNumber());
+            assertEquals(4, reopened.newPage(new byte[0]));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * 检查点之后复制文件模拟崩溃：数据文件按区间预先扩展，末尾的页全为0，页数仍以记录为准
+     */
+    @Test
+    public void countSurvivesCrash() throws Exception {
+        String path = path("crash");
+        String copy = path("copy");
+        PageCache pc = PageCache.create(path, MEMORY);
+        try {
+            pc.newPages(5, new byte[0]);
+            pc.checkpoint();
+            Files.copy(new File(path + PageCacheImpl.DB_SUFFIX).toPath(), new File(copy + PageCacheImpl.DB_SUFFIX).toPath());
+            Files.copy(new File(path + PageCacheImpl.LAYOUT_SUFFIX).toPath(), new File(copy + PageCacheImpl.LAYOUT_SUFFIX).toPath());
+        } finally {
+            pc.close();
+        }
+        assertEquals(new PageCacheOptions().extentPages * (long) PageCache.PAGE_SIZE,
+                new File(copy + PageCacheImpl.DB_SUFFIX).length());
+
+        PageCache reopened = PageCache.open(copy, MEMORY);
+        try {
+            assertEquals(5, reopened.getPageNumber());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * 没有布局文件的旧表空间按文件大小计算页数，打开之后记录下来
+     */
+    @Test
+    public void legacyTableSpaceCountsFileSize() throws Exception {
+        String path = path("legacy");
+        PageCache pc = PageCache.create(path, MEMORY);
+        pc.newPages(2, new byte[0]);
+        pc.close();
+        Files.delete(new File(path + PageCacheImpl.LAYOUT_SUFFIX).toPath());
+
+        PageCache reopened = PageCache.open(path, MEMORY);
+        try {
+            assertEquals(2, reopened.getPageNumber());
+        } finally {
+            reopened.close();
+        }
+        assertEquals(12, new File(path + PageCacheImpl.LAYOUT_SUFFIX).length());
+    }
+
+}
@@ -0,0 +1,128 @@
+package top.parak.khdb.server.dm.pagecache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import top.parak.khdb.server.dm.page.Page;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 多个数据文件的表空间：页按stripePages轮流分布，重新打开时文件数和stripePages必须与布局文件一致
+ *
+ * @author KHighness
+ * @since 2022-07-14
+ * @email parakovo@gmail.com
+ */
+public class StripedPageFileTest {
+
+    private static final long MEMORY = 16L * PageCache.PAGE_SIZE;
+    private static final int PAGES = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String path(String name) {
+        return new File(folder.getRoot(), name).getPath();
+    }
+
+    private static PageCacheOptions options(int stripePages, String... extraFiles) {
+        PageCacheOptions options = new PageCacheOptions();
+        options.stripePages = stripePages;
+        options.extraFiles = extraFiles;
+        return options;
+    }
+
+    private static byte[] page(int value) {
+        byte[] raw = new byte[PageCache.PAGE_SIZE];
+        Arrays.fill(raw, (byte) value);
+        return raw;
+    }
+
+    private String create() {
+        String path = path("striped");
+        PageCache pc = PageCache.create(path, MEMORY, options(2, path("extra")));
+        for (int pgno = 1; pgno <= PAGES; pgno++) {
+            assertEquals(pgno, pc.newPage(page(pgno)));
+        }
+        pc.close();
+        return path;
+    }
+
+    @Test
+    public void stripedRoundTrip() throws Exception {
+        String path = create();
+        // 页1、2在主文件，页3、4在另一个文件，以此类推
+        assertEquals(6L * PageCache.PAGE_SIZE, new File(path + PageCacheImpl.DB_SUFFIX).length());
+        assertEquals(4L * PageCache.PAGE_SIZE, new File(path("extra")).length());
+
+        PageCache pc = PageCache.open(path, MEMORY, options(2, path("extra")));
+        try {
+            assertEquals(PAGES, pc.getPageNumber());
+            for (int pgno = 1; pgno <= PAGES; pgno++) {
+                Page page = pc.getPage(pgno);
+                try {
+                    byte[] raw = new byte[PageCache.PAGE_SIZE];
+                    page.getBuffer().duplicate().get(raw);
+                    assertArrayEquals("page " + pgno, page(pgno), raw);
+                } finally {
+                    page.release();
+                }
+            }
+        } finally {
+            pc.close();
+        }
+    }
+
+    /**
+     * 布局不一致时panic，进程以1退出，所以在子进程中打开
+     */
+    @Test
+    public void layoutMismatch() throws Exception {
+        String path = create();
+        assertEquals(0, open(path, 2, path("extra")));
+        assertEquals(1, open(path, 4, path("extra")));
+        assertEquals(1, open(path, 2));
+        assertEquals(1, open(path, 2, path("extra"), path("more")));
+    }
+
+    private static int open(String path, int stripePages, String... extraFiles) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Open.class.getName());
+        command.add(path);
+        command.add(String.valueOf(stripePages));
+        command.addAll(Arrays.asList(extraFiles));
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(path + ".out"))
+                .start();
+        assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+        return process.exitValue();
+    }
+
+    /**
+     * 子进程：args为path、stripePages和其余数据文件，打开成功后以0退出
+     */
+    public static class Open {
+
+        public static void main(String[] args) {
+            PageCache pc = PageCache.open(args[0], MEMORY,
+                    options(Integer.parseInt(args[1]), Arrays.copyOfRange(args, 2, args.length)));
+            pc.close();
+            System.exit(0);
+        }
+
+    }
+
+}
@@ -0,0 +1,151 @@
+package top.parak.khdb.server.dm.pageindex;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import top.parak.khdb.server.dm.page.Page;
+import top.parak.khdb.server.dm.page.PageX;
+import top.parak.khdb.server.dm.pagecache.PageCache;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 页空闲空间索引
+ *
+ * @author KHighness
+ * @since 2022-07-14
+ * @email parakovo@gmail.com
+ */
+public class PageIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeFreeSpace() {
+        new PageIndex().add(2, -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void freeSpaceBeyondPage() {
+        new PageIndex().add(2, PageX.MAX_FREE_SPACE + 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPageNo() {
+        new PageIndex().add(0, 100);
+    }
+
+    @Test
+    public void selectSmallestFittingInterval() {
+        PageIndex index = new PageIndex();
+        index.add(2, 100);
+        index.add(3, 1000);
+        index.add(4, 5000);
+        PageInfo info = index.select(900);
+        assertEquals(4, info.pageNo);
+        info = index.select(500);
+        assertEquals(3, info.pageNo);
+        assertNull(index.select(500));
+    }
+
+    /**
+     * 最高的区间没有下一个区间，其中空闲空间不足的页不能被选中，也不能被移除
+     */
+    @Test
+    public void topIntervalChecksFreeSpace() {
+        PageIndex index = new PageIndex();
+        int small = PageX.MAX_FREE_SPACE - 10;
+        index.add(2, small);
+        assertNull(index.select(PageX.MAX_FREE_SPACE));
+        assertNull(index.select(PageX.MAX_FREE_SPACE + 1));
+
+        index.add(3, PageX.MAX_FREE_SPACE);
+        PageInfo info = index.select(PageX.MAX_FREE_SPACE);
+        assertNotNull(info);
+        assertEquals(3, info.pageNo);
+
+        info = index.select(small);
+        assertEquals(2, info.pageNo);
+        assertTrue(info.freeSpace >= small);
+    }
+
+    /**
+     * 并行扫描跨越多个任务，缓存中修改过还没有写回的页以缓存为准，全0页按空页加入
+     */
+    @Test
+    public void rebuildFromFileAndCache() throws Exception {
+        String path = new File(folder.getRoot(), "index").getPath();
+        long memory = 64L * PageCache.PAGE_SIZE;
+        Random random = new Random(20220714);
+        PageCache pc = PageCache.create(path, memory);
+        pc.newPages(600, PageX.initRaw());
+        for (int pgno = 2; pgno <= 600; pgno++) {
+            insert(pc, pgno, random.nextInt(PageX.MAX_FREE_SPACE / 2));
+        }
+        pc.newPages(5, new byte[0]);
+        pc.close();
+
+        pc = PageCache.open(path, memory);
+        try {
+            Map<Integer, Integer> expected = new HashMap<>();
+            // 倒序访问不触发预读，预读会淘汰之后修改的页
+            for (int pgno = pc.getPageNumber(); pgno >= 2; pgno--) {
+                expected.put(pgno, freeSpace(pc, pgno));
+            }
+            // 最后访问，留在缓存中
+            for (int pgno = 319; pgno >= 300; pgno--) {
+                insert(pc, pgno, 1000);
+                expected.put(pgno, freeSpace(pc, pgno));
+            }
+            for (int pgno = 300; pgno < 320; pgno++) {
+                assertTrue(pc.isCached(pgno));
+            }
+            assertEquals(PageX.MAX_FREE_SPACE, (int) expected.get(605));
+
+            PageIndex index = new PageIndex(pc);
+            index.rebuild();
+            Map<Integer, Integer> actual = new HashMap<>();
+            PageInfo info;
+            while ((info = index.select(0)) != null) {
+                assertNull(actual.put(info.pageNo, info.freeSpace));
+            }
+            assertEquals(expected, actual);
+        } finally {
+            pc.close();
+        }
+    }
+
+    private static int freeSpace(PageCache pc, int pgno) throws Exception {
+        Page page = pc.getPage(pgno);
+        try {
+            return PageX.readFreeSpace(page);
+        } finally {
+            page.release();
+        }
+    }
+
+    private static void insert(PageCache pc, int pgno, int length) throws Exception {
+        Page page = pc.getPage(pgno);
+        try {
+            page.lock();
+            try {
+                PageX.insert(page, new byte[length]);
+                page.setDirty(true);
+            } finally {
+                page.unlock();
+            }
+        } finally {
+            page.release();
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package top.parak.khdb.toolkit;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 二进制编解码的往返测试，byte[]与堆内、堆外ByteBuffer的结果必须一致
+ *
+ * @author KHighness
+ * @since 2022-07-14
+ * @email parakovo@gmail.com
+ */
+public class CodecTest {
+
+    private static final long[] LONGS = {0, 1, -1, 0x7F, 0x80, 0xFF, 0x8000, 0xFFFF,
+            Integer.MAX_VALUE, Integer.MIN_VALUE, 0xFFFFFFFFL, Long.MAX_VALUE, Long.MIN_VALUE, 0x0123456789ABCDEFL};
+
+    private static final String[] STRINGS = {"", "a", "KhDB", "é", "数据库", "😀",
+            "a😀b数", "\uD800", "x\uDC00y", "߿ࠀ￿"};
+
+    @Test
+    public void primitives() {
+        for (long value : LONGS) {
+            byte[] raw = new byte[16];
+            Codec.putShort(raw, 1, (short) value);
+            assertEquals((short) value, Codec.getShort(raw, 1));
+            Codec.putInt(raw, 3, (int) value);
+            assertEquals((int) value, Codec.getInt(raw, 3));
+            Codec.putLong(raw, 7, value);
+            assertEquals(value, Codec.getLong(raw, 7));
+
+            for (ByteBuffer buf : buffers(16)) {
+                Codec.putShort(buf, 1, (short) value);
+                Codec.putInt(buf, 3, (int) value);
+                Codec.putLong(buf, 7, value);
+                assertEquals((short) value, Codec.getShort(buf, 1));
+                assertEquals((int) value, Codec.getInt(buf, 3));
+                assertEquals(value, Codec.getLong(buf, 7));
+                assertEquals(0, buf.position());
+                // 与byte[]的字节序一致
+                assertArrayEquals(raw, toArray(buf));
+            }
+        }
+    }
+
+    @Test
+    public void bigEndian() {
+        byte[] raw = new byte[8];
+        Codec.putLong(raw, 0, 0x0102030405060708L);
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, raw);
+    }
+
+    @Test
+    public void bytes() {
+        byte[] src = {1, 2, 3, 4, 5, 6};
+        for (ByteBuffer buf : buffers(10)) {
+            Codec.putBytes(buf, 3, src, 1, 4);
+            assertArrayEquals(new byte[] {0, 0, 0, 2, 3, 4, 5, 0, 0, 0}, toArray(buf));
+            byte[] dst = new byte[6];
+            Codec.getBytes(buf, 4, dst, 2, 3);
+            assertArrayEquals(new byte[] {0, 0, 3, 4, 5, 0}, dst);
+            assertEquals(0, buf.position());
+        }
+    }
+
+    @Test
+    public void strings() {
+        for (String str : STRINGS) {
+            byte[] expected = str.getBytes(StandardCharsets.UTF_8);
+            assertEquals(str, expected.length, Codec.utf8Length(str));
+
+            byte[] raw = new byte[2 + 4 + expected.length];
+            assertEquals(4 + expected.length, Codec.putString(raw, 2, str));
+            assertEquals(expected.length, Codec.getInt(raw, 2));
+            assertEquals(new String(expected, StandardCharsets.UTF_8), Codec.getString(raw, 2));
+
+            for (ByteBuffer buf : buffers(raw.length)) {
+                assertEquals(4 + expected.length, Codec.putString(buf, 2, str));
+                assertArrayEquals(raw, toArray(buf));
+                assertEquals(new String(expected, StandardCharsets.UTF_8), Codec.getString(buf, 2));
+                assertEquals(0, buf.position());
+            }
+        }
+    }
+
+    @Test
+    public void directStringBounds() {
+        // 堆外缓冲区直接编码，只写入[offset, offset + 4 + Length)
+        String str = "a😀b数\uD800é";
+        int length = 4 + Codec.utf8Length(str);
+        ByteBuffer buf = ByteBuffer.allocateDirect(length + 6);
+        for (int i = 0; i < buf.capacity(); i++) {
+            buf.put(i, (byte) 0x55);
+        }
+        assertEquals(length, Codec.putString(buf, 3, str));
+        byte[] raw = toArray(buf);
+        for (int i : new int[] {0, 1, 2, 3 + length, 4 + length, 5 + length}) {
+            assertEquals(0x55, raw[i]);
+        }
+        assertEquals(new String(str.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8), Codec.getString(buf, 3));
+    }
+
+    @Test
+    public void slicedBuffer() {
+        // arrayOffset不为0的堆内缓冲区
+        ByteBuffer whole = ByteBuffer.allocate(32);
+        whole.position(8);
+        ByteBuffer buf = whole.slice();
+        Codec.putString(buf, 0, "数据库");
+        Codec.putLong(buf, 16, -2);
+        assertEquals("数据库", Codec.getString(buf, 0));
+        assertEquals("数据库", Codec.getString(whole.array(), 8));
+        assertEquals(-2, Codec.getLong(whole.array(), 24));
+    }
+
+    private static ByteBuffer[] buffers(int capacity) {
+        return new ByteBuffer[] {ByteBuffer.allocate(capacity), ByteBuffer.allocateDirect(capacity)};
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] raw = new byte[buf.capacity()];
+        ByteBuffer dup = buf.duplicate();
+        dup.clear();
+        dup.get(raw);
+        return raw;
+    }
+
+}
@@ -0,0 +1,291 @@
+package top.parak.khdb.toolkit;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 游程编码的往返测试，编码格式就是重做日志的磁盘格式
+ *
+ * @author KHighness
+ * @since 2022-07-14
+ * @email parakovo@gmail.com
+ */
+public class RunLengthTest {
+
+    private static final int PAGE_SIZE = 1 << 13;
+
+    @Test
+    public void empty() {
+        byte[] encoded = encode(new byte[0]);
+        assertEquals(0, encoded.length);
+        assertEquals(0, RunLength.decode(ByteBuffer.wrap(encoded), ByteBuffer.allocate(0), 0));
+    }
+
+    @Test
+    public void allZero() {
+        byte[] raw = new byte[PAGE_SIZE];
+        byte[] encoded = encode(raw);
+        // 一个3字节的头部，没有数据
+        assertEquals(3, encoded.length);
+        assertRoundTrip(raw);
+    }
+
+    @Test
+    public void allSame() {
+        byte[] raw = new byte[PAGE_SIZE];
+        Arrays.fill(raw, (byte) 0x5A);
+        byte[] encoded = encode(raw);
+        assertEquals(4, encoded.length);
+        assertRoundTrip(raw);
+    }
+
+    @Test
+    public void shortInputs() {
+        for (int length = 1; length <= 4; length++) {
+            byte[] same = new byte[length];
+            Arrays.fill(same, (byte) 7);
+            assertRoundTrip(same);
+            assertRoundTrip(new byte[length]);
+        }
+        assertRoundTrip(new byte[] {(byte) 0xFF});
+        assertRoundTrip(new byte[] {(byte) 0x80, 0x7F});
+    }
+
+    @Test
+    public void alternating() {
+        byte[] raw = new byte[PAGE_SIZE];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = (byte) (i % 2 == 0 ? 0 : 0xFF);
+        }
+        byte[] encoded = encode(raw);
+        // 整页是一个LITERAL段
+        assertEquals(raw.length + 3, encoded.length);
+        assertRoundTrip(raw);
+    }
+
+    @Test
+    public void runsAroundMinRun() {
+        // 长度为1、2、3、4的相同字节段交替出现，覆盖LITERAL与REPEAT、ZERO的边界
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int round = 0; round < 64; round++) {
+            for (int run = 1; run <= 4; run++) {
+                byte b = (byte) (round % 3 == 0 ? 0 : round * 4 + run);
+                for (int i = 0; i < run; i++) {
+                    out.write(b);
+                }
+            }
+        }
+        assertRoundTrip(out.toByteArray());
+    }
+
+    @Test
+    public void maxLengthRuns() {
+        // 头部的varint需要1、2、3个字节的长度
+        for (int length : new int[] {31, 32, 4095, 4096, PAGE_SIZE, 1 << 16, (1 << 16) + 1}) {
+            byte[] zeros = new byte[length];
+            assertRoundTrip(zeros);
+            byte[] same = new byte[length];
+            Arrays.fill(same, (byte) 0x80);
+            assertRoundTrip(same);
+            byte[] literal = new byte[length];
+            for (int i = 0; i < length; i++) {
+                literal[i] = (byte) i;
+            }
+            assertRoundTrip(literal);
+        }
+    }
+
+    @Test
+    public void random() {
+        Random random = new Random(20220714);
+        for (int n = 0; n < 200; n++) {
+            byte[] raw = new byte[random.nextInt(PAGE_SIZE)];
+            int i = 0;
+            while (i < raw.length) {
+                int run = Math.min(raw.length - i, 1 + random.nextInt(16));
+                byte b = random.nextInt(4) == 0 ? 0 : (byte) random.nextInt();
+                boolean same = random.nextBoolean();
+                for (int j = 0; j < run; j++) {
+                    raw[i + j] = same ? b : (byte) random.nextInt();
+                }
+                i += run;
+            }
+            assertRoundTrip(raw);
+        }
+    }
+
+    @Test
+    public void decodeAtOffset() {
+        byte[] raw = {1, 2, 3, 0, 0, 0, 0, 9, 9, 9, 9};
+        ByteBuffer dst = ByteBuffer.allocate(raw.length + 10);
+        Arrays.fill(dst.array(), (byte) -1);
+        assertEquals(raw.length, RunLength.decode(ByteBuffer.wrap(encode(raw)), dst, 5));
+        assertEquals(0, dst.position());
+        assertArrayEquals(raw, Arrays.copyOfRange(dst.array(), 5, 5 + raw.length));
+        assertEquals(-1, dst.get(4));
+        assertEquals(-1, dst.get(5 + raw.length));
+    }
+
+    @Test
+    public void xorRoundTrip() {
+        Random random = new Random(7);
+        byte[] oldRaw = new byte[PAGE_SIZE];
+        random.nextBytes(oldRaw);
+        byte[] newRaw = oldRaw.clone();
+        // 稀疏修改：只有改动的字节编码为非ZERO段
+        for (int i = 100; i < 140; i++) {
+            newRaw[i] = (byte) 0xAB;
+        }
+        newRaw[PAGE_SIZE - 1] ^= 1;
+        assertXorRoundTrip(oldRaw, newRaw);
+
+        assertXorRoundTrip(oldRaw, oldRaw.clone());
+        assertXorRoundTrip(new byte[0], new byte[0]);
+
+        byte[] inverted = new byte[PAGE_SIZE];
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            inverted[i] = (byte) ~oldRaw[i];
+        }
+        assertXorRoundTrip(oldRaw, inverted);
+    }
+
+    @Test
+    public void xorUnchangedIsOneSegment() {
+        byte[] raw = new byte[PAGE_SIZE];
+        new Random(1).nextBytes(raw);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RunLength.encodeXor(out, raw, raw.clone());
+        assertEquals(3, out.size());
+    }
+
+    @Test
+    public void varint() {
+        long[] values = {0, 1, 0x7F, 0x80, 0x3FFF, 0x4000, Integer.MAX_VALUE, 0xFFFFFFFFL,
+                Long.MAX_VALUE, Long.MIN_VALUE, -1};
+        int[] sizes = {1, 1, 1, 2, 2, 3, 5, 5, 9, 10, 10};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < values.length; i++) {
+            ByteArrayOutputStream one = new ByteArrayOutputStream();
+            RunLength.writeVarint(one, values[i]);
+            assertEquals(sizes[i], one.size());
+            RunLength.writeVarint(out, values[i]);
+        }
+        ByteBuffer src = ByteBuffer.wrap(out.toByteArray());
+        for (long value : values) {
+            assertEquals(value, RunLength.readVarint(src));
+        }
+        assertTrue(!src.hasRemaining());
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void truncatedVarint() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RunLength.writeVarint(out, 1L << 40);
+        byte[] encoded = out.toByteArray();
+        RunLength.readVarint(ByteBuffer.wrap(encoded, 0, encoded.length - 1));
+    }
+
+    @Test
+    public void truncatedInput() {
+        byte[] raw = new byte[600];
+        for (int i = 0; i < 200; i++) {
+            raw[i] = (byte) i;
+        }
+        Arrays.fill(raw, 300, 600, (byte) 3);
+        byte[] encoded = encode(raw);
+        // 截断在段的中间时抛出异常，截断在段的边界时解码结果变短，都不会得到完整的数据
+        for (int cut = 0; cut < encoded.length; cut++) {
+            ByteBuffer dst = ByteBuffer.allocate(raw.length);
+            try {
+                int length = RunLength.decode(ByteBuffer.wrap(encoded, 0, cut), dst, 0);
+                assertTrue("cut=" + cut, length < raw.length);
+            } catch (BufferUnderflowException expected) {
+                // 截断在头部或数据中间
+            }
+        }
+    }
+
+    @Test
+    public void truncatedXorInput() {
+        byte[] oldRaw = new byte[300];
+        byte[] newRaw = new byte[300];
+        for (int i = 0; i < 100; i++) {
+            newRaw[i] = (byte) (i + 1);
+        }
+        Arrays.fill(newRaw, 200, 300, (byte) 5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RunLength.encodeXor(out, oldRaw, newRaw);
+        byte[] encoded = out.toByteArray();
+        // 截断在LITERAL段的数据中间
+        try {
+            RunLength.decodeXor(ByteBuffer.wrap(encoded, 0, 50), ByteBuffer.allocate(300), 0);
+            fail();
+        } catch (BufferUnderflowException expected) {
+        }
+    }
+
+    @Test
+    public void corruptLength() {
+        // 头部给出的长度超出目标，包括超过int范围的长度
+        for (long length : new long[] {11, Integer.MAX_VALUE, 1L << 40}) {
+            for (int kind = 0; kind < 3; kind++) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                RunLength.writeVarint(out, length << 2 | kind);
+                out.write(1);
+                ByteBuffer src = ByteBuffer.wrap(out.toByteArray());
+                try {
+                    RunLength.decode(src.duplicate(), ByteBuffer.allocate(10), 0);
+                    fail("length=" + length + " kind=" + kind);
+                } catch (BufferOverflowException expected) {
+                }
+                try {
+                    RunLength.decodeXor(src.duplicate(), ByteBuffer.allocate(10), 0);
+                    fail("length=" + length + " kind=" + kind);
+                } catch (BufferOverflowException expected) {
+                }
+            }
+        }
+    }
+
+    private static byte[] encode(byte[] raw) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RunLength.encode(out, raw);
+        return out.toByteArray();
+    }
+
+    private static void assertRoundTrip(byte[] raw) {
+        byte[] encoded = encode(raw);
+        ByteBuffer src = ByteBuffer.wrap(encoded);
+        for (ByteBuffer dst : new ByteBuffer[] {ByteBuffer.allocate(raw.length), ByteBuffer.allocateDirect(raw.length)}) {
+            src.rewind();
+            assertEquals(raw.length, RunLength.decode(src, dst, 0));
+            assertTrue(!src.hasRemaining());
+            byte[] decoded = new byte[raw.length];
+            ((ByteBuffer) dst.duplicate().clear()).get(decoded);
+            assertArrayEquals(raw, decoded);
+        }
+    }
+
+    private static void assertXorRoundTrip(byte[] oldRaw, byte[] newRaw) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RunLength.encodeXor(out, oldRaw, newRaw);
+        ByteBuffer dst = ByteBuffer.wrap(oldRaw.clone());
+        RunLength.decodeXor(ByteBuffer.wrap(out.toByteArray()), dst, 0);
+        assertArrayEquals(newRaw, dst.array());
+        // 再作用一次回到旧数据，撤销也可以用同一条差量
+        RunLength.decodeXor(ByteBuffer.wrap(out.toByteArray()), dst, 0);
+        assertArrayEquals(oldRaw, dst.array());
+    }
+
+}